@@ -15,6 +15,11 @@
  */
 package com.zhi.volley;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.util.Collections;
 import java.util.Map;
 
@@ -38,9 +43,23 @@ public interface Cache {
      */
     void put(String key, Entry entry);
 
+    /**
+     * Replaces the metadata of an existing entry, such as its TTLs, etag and response
+     * headers, while keeping its data. Does nothing if there is no entry for the key.
+     * <p/>
+     * Meant for responses revalidated by a 304, where rewriting the data would be wasted.
+     *
+     * @param key   Cache key
+     * @param entry Metadata to store; its data is ignored
+     */
+    void updateMetadata(String key, Entry entry);
+
     /**
      * Performs any potentially long-running actions needed to initialize the cache;
      * will be called from a worker thread.
+     * <p/>
+     * The other methods may be called before or while this runs, and must not wait for it:
+     * implementations resolve the entries they have not loaded yet on demand.
      */
     void initialize();
 
@@ -64,6 +83,51 @@ public interface Cache {
      */
     void clear();
 
+    /**
+     * Returns what the cache has done since it was created or {@link #resetStats()} was last
+     * called. Cheap enough to be polled.
+     */
+    CacheStats getStats();
+
+    /**
+     * Sets the figures reported by {@link #getStats()} back to zero.
+     */
+    void resetStats();
+
+    /**
+     * Body of an entry kept on disk rather than in {@link Entry#data}, to be processed
+     * incrementally instead of loaded at once.
+     */
+    class FileBody {
+        private final File mFile;
+        private final long mLength;
+
+        public FileBody(File file) {
+            mFile = file;
+            mLength = file.length();
+        }
+
+        /** The file holding the body, for APIs which take a path. */
+        public File getFile() {
+            return mFile;
+        }
+
+        /** The length of the body in bytes. */
+        public long length() {
+            return mLength;
+        }
+
+        /** Opens a stream over the body; the caller closes it. */
+        public InputStream openStream() throws IOException {
+            return new FileInputStream(mFile);
+        }
+
+        /** Opens a read-only channel over the body for positional reads; the caller closes it. */
+        public FileChannel openChannel() throws IOException {
+            return new FileInputStream(mFile).getChannel();
+        }
+    }
+
     /**
      * Data and metadata for an entry returned by the cache.
      */
@@ -98,6 +162,8 @@ public interface Cache {
         public long softTtl;
         /** Immutable response headers as received from server; must be non-null. */
         public Map<String, String> responseHeaders = Collections.emptyMap();
+        /** The body on disk if the entry is not kept in memory, null otherwise. */
+        public FileBody fileBody;
 
         /** True if the entry is expired. */
         public boolean isExpired() {
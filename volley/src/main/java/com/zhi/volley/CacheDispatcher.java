@@ -90,8 +90,15 @@ public class CacheDispatcher extends Thread {
         }
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
-        // Make a blocking call to initialize the cache.
-        mCache.initialize();
+        // Warm the cache up in the background rather than holding every request behind it;
+        // the cache resolves the entries it has not loaded yet on demand.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                mCache.initialize();
+            }
+        }, "volley-cache-init").start();
 
         while (true) {
             try {
@@ -107,7 +114,12 @@ public class CacheDispatcher extends Thread {
                 }
 
                 // Attempt to retrieve this item from cache.
+                final long startTime = System.nanoTime();
                 Cache.Entry entry = mCache.get(request.getCacheKey());
+                RequestQueue queue = request.getRequestQueue();
+                if (queue != null) {
+                    queue.recordCacheLookup(request, entry, System.nanoTime() - startTime);
+                }
                 if (entry == null) {
                     request.addMarker("cache-miss");
                     // Cache miss; send off to the network dispatcher.
@@ -126,7 +138,7 @@ public class CacheDispatcher extends Thread {
                 // We have a cache hit; parse its data for delivery back to the request.
                 request.addMarker("cache-hit");
                 Response<?> response = request.parseNetworkResponse(
-                        new NetworkResponse(entry.data, entry.responseHeaders));
+                        new NetworkResponse(entry.data, entry.responseHeaders, entry.fileBody));
                 request.addMarker("cache-hit-parsed");
 
                 if (!entry.refreshNeeded()) {
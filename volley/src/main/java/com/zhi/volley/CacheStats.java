@@ -0,0 +1,219 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhi.volley;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Snapshot of what a {@link Cache} has done since it was created or its statistics reset.
+ * <p/>
+ * Figures are read one by one without stopping the cache, so a snapshot taken under load may
+ * be off by the operations in flight.
+ */
+public class CacheStats {
+    /**
+     * Number of buckets of the latency histogram. Bucket 0 counts lookups under a microsecond,
+     * bucket i those from 2^(i-1) up to 2^i microseconds, and the last one everything slower.
+     */
+    public static final int LATENCY_BUCKETS = 24;
+
+    /** Snapshot of a cache which records nothing. */
+    public static final CacheStats EMPTY = new Counter().snapshot();
+
+    /** Lookups which found an entry, expired or not. */
+    public final long hitCount;
+    /** Lookups which found no entry. */
+    public final long missCount;
+    /** Hits on an entry past its soft TTL, served while it gets refreshed. */
+    public final long softExpiredHitCount;
+    /** Hits on an entry past its TTL, which cannot be served. */
+    public final long expiredHitCount;
+    /** Entries evicted to make room for others. */
+    public final long evictionCount;
+    /** Bytes written to store entries. */
+    public final long bytesWritten;
+    /** Number of times entries had to be pruned. */
+    public final long pruneCount;
+    /** Total time spent pruning. */
+    public final long pruneTimeMillis;
+
+    private final long[] mLatencyHistogram;
+
+    private CacheStats(Counter counter) {
+        hitCount = counter.mHitCount.get();
+        missCount = counter.mMissCount.get();
+        softExpiredHitCount = counter.mSoftExpiredHitCount.get();
+        expiredHitCount = counter.mExpiredHitCount.get();
+        evictionCount = counter.mEvictionCount.get();
+        bytesWritten = counter.mBytesWritten.get();
+        pruneCount = counter.mPruneCount.get();
+        pruneTimeMillis = counter.mPruneTimeMillis.get();
+        mLatencyHistogram = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            mLatencyHistogram[i] = counter.mLatencyHistogram.get(i);
+        }
+    }
+
+    /**
+     * Returns the total number of lookups.
+     */
+    public long getRequestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * Returns the share of lookups which found an entry that could be served, soft-expired
+     * ones included, or 0 if there was no lookup.
+     */
+    public double getHitRatio() {
+        final long requests = getRequestCount();
+        return requests == 0 ? 0 : (double) (hitCount - expiredHitCount) / requests;
+    }
+
+    /**
+     * Returns a copy of the lookup latency histogram, see {@link #LATENCY_BUCKETS}.
+     */
+    public long[] getLatencyHistogram() {
+        return mLatencyHistogram.clone();
+    }
+
+    /**
+     * Returns the upper bound of the histogram bucket holding the given percentile of lookup
+     * latencies, in microseconds, or 0 if there was no lookup. The slowest bucket has no upper
+     * bound and reports {@link Long#MAX_VALUE}.
+     *
+     * @param percentile Between 0 and 100.
+     */
+    public long getLatencyPercentileMicros(double percentile) {
+        long total = 0;
+        for (long count : mLatencyHistogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS - 1; i++) {
+            seen += mLatencyHistogram[i];
+            if (seen >= rank) {
+                return 1L << i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return "hits=" + hitCount + " (soft-expired " + softExpiredHitCount + ", expired "
+                + expiredHitCount + ") misses=" + missCount + " evictions=" + evictionCount
+                + " written=" + bytesWritten + " bytes, pruned " + pruneCount + " times in "
+                + pruneTimeMillis + " ms, get p50<" + getLatencyPercentileMicros(50)
+                + "us p99<" + getLatencyPercentileMicros(99) + "us";
+    }
+
+    /**
+     * Lock-free recorder of the figures of a {@link CacheStats}, cheap enough to leave on.
+     */
+    public static class Counter {
+        private final AtomicLong mHitCount = new AtomicLong();
+        private final AtomicLong mMissCount = new AtomicLong();
+        private final AtomicLong mSoftExpiredHitCount = new AtomicLong();
+        private final AtomicLong mExpiredHitCount = new AtomicLong();
+        private final AtomicLong mEvictionCount = new AtomicLong();
+        private final AtomicLong mBytesWritten = new AtomicLong();
+        private final AtomicLong mPruneCount = new AtomicLong();
+        private final AtomicLong mPruneTimeMillis = new AtomicLong();
+        private final AtomicLongArray mLatencyHistogram = new AtomicLongArray(LATENCY_BUCKETS);
+
+        /**
+         * Records a lookup.
+         *
+         * @param entry        The entry found, or null on a miss.
+         * @param elapsedNanos The time the lookup took, as measured by {@link System#nanoTime()}.
+         */
+        public void recordLookup(Cache.Entry entry, long elapsedNanos) {
+            if (entry == null) {
+                mMissCount.incrementAndGet();
+            } else {
+                mHitCount.incrementAndGet();
+                if (entry.isExpired()) {
+                    mExpiredHitCount.incrementAndGet();
+                } else if (entry.refreshNeeded()) {
+                    mSoftExpiredHitCount.incrementAndGet();
+                }
+            }
+            final long micros = Math.max(0, elapsedNanos / 1000);
+            final int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros),
+                    LATENCY_BUCKETS - 1);
+            mLatencyHistogram.incrementAndGet(bucket);
+        }
+
+        /** Records an evicted entry. */
+        public void recordEviction() {
+            mEvictionCount.incrementAndGet();
+        }
+
+        /** Records the bytes written to store an entry. */
+        public void recordWrite(long bytes) {
+            mBytesWritten.addAndGet(bytes);
+        }
+
+        /** Records a round of pruning. */
+        public void recordPrune(long elapsedMillis) {
+            mPruneCount.incrementAndGet();
+            mPruneTimeMillis.addAndGet(elapsedMillis);
+        }
+
+        public long getHitCount() {
+            return mHitCount.get();
+        }
+
+        public long getMissCount() {
+            return mMissCount.get();
+        }
+
+        public long getEvictionCount() {
+            return mEvictionCount.get();
+        }
+
+        /**
+         * Returns the figures recorded so far.
+         */
+        public CacheStats snapshot() {
+            return new CacheStats(this);
+        }
+
+        /**
+         * Sets all figures back to zero. Operations in flight may still be recorded after.
+         */
+        public void reset() {
+            mHitCount.set(0);
+            mMissCount.set(0);
+            mSoftExpiredHitCount.set(0);
+            mExpiredHitCount.set(0);
+            mEvictionCount.set(0);
+            mBytesWritten.set(0);
+            mPruneCount.set(0);
+            mPruneTimeMillis.set(0);
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                mLatencyHistogram.set(i, 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhi.volley;
+
+/**
+ * Indicates that a request was dropped without going out to the network, as it was still
+ * waiting for a network dispatcher past its deadline.
+ *
+ * @see Request#setDeadline(long)
+ */
+@SuppressWarnings("serial")
+public class DeadlineExceededError extends VolleyError {
+}
@@ -22,6 +22,7 @@ import android.os.Process;
 import android.os.SystemClock;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides a thread for performing network dispatch from a queue of requests.
@@ -48,6 +49,10 @@ public class NetworkDispatcher extends Thread {
      * For posting responses and errors.
      */
     private final ResponseDelivery mDelivery;
+    /**
+     * The pool this dispatcher belongs to, or null if it runs on its own.
+     */
+    private final NetworkDispatcherPool mPool;
     /**
      * Used for telling us to die.
      */
@@ -65,10 +70,16 @@ public class NetworkDispatcher extends Thread {
     public NetworkDispatcher(BlockingQueue<Request<?>> queue,
             Network network, Cache cache,
             ResponseDelivery delivery) {
+        this(queue, network, cache, delivery, null);
+    }
+
+    NetworkDispatcher(BlockingQueue<Request<?>> queue, Network network, Cache cache,
+            ResponseDelivery delivery, NetworkDispatcherPool pool) {
         mQueue = queue;
         mNetwork = network;
         mCache = cache;
         mDelivery = delivery;
+        mPool = pool;
     }
 
     /**
@@ -96,7 +107,21 @@ public class NetworkDispatcher extends Thread {
             Request<?> request;
             try {
                 // Take a request from the queue.
-                request = mQueue.take();
+                final long idleTimeout = mPool != null ? mPool.getIdleTimeoutMillis() : 0;
+                if (idleTimeout > 0) {
+                    request = mQueue.poll(idleTimeout, TimeUnit.MILLISECONDS);
+                    if (request == null) {
+                        if (mPool.retire(this)) {
+                            return;
+                        }
+                        continue;
+                    }
+                } else {
+                    request = mQueue.take();
+                }
+                if (mPool != null) {
+                    mPool.onTaken(request);
+                }
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
                 if (mQuit) {
@@ -115,6 +140,18 @@ public class NetworkDispatcher extends Thread {
                     continue;
                 }
 
+                // Nor if it waited past its deadline; a refresh of a response delivered
+                // already just gets dropped.
+                if (request.isPastDeadline()) {
+                    if (request.hasHadResponseDelivered()) {
+                        request.finish("network-discard-deadline");
+                    } else {
+                        request.addMarker("network-discard-deadline");
+                        mDelivery.postError(request, new DeadlineExceededError());
+                    }
+                    continue;
+                }
+
                 addTrafficStatsTag(request);
 
                 // Perform the network request.
@@ -137,10 +174,14 @@ public class NetworkDispatcher extends Thread {
                 Response<?> response = request.parseNetworkResponse(networkResponse);
                 request.addMarker("network-parse-complete");
 
-                // Write to cache if applicable.
-                // TODO: Only onResponse cache metadata instead of entire record for 304s.
+                // Write to cache if applicable. A 304 only refreshes the metadata, the data
+                // in the cache is what the response was built from.
                 if (request.shouldCache() && response.cacheEntry != null) {
-                    mCache.put(request.getCacheKey(), response.cacheEntry);
+                    if (networkResponse.notModified) {
+                        mCache.updateMetadata(request.getCacheKey(), response.cacheEntry);
+                    } else {
+                        mCache.put(request.getCacheKey(), response.cacheEntry);
+                    }
                     request.addMarker("network-cache-written");
                 }
 
@@ -155,6 +196,11 @@ public class NetworkDispatcher extends Thread {
                 VolleyError volleyError = new VolleyError(e);
                 volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
                 mDelivery.postError(request, new VolleyError(e));
+            } finally {
+                // Let the next request to the same host run.
+                if (mQueue instanceof NetworkQueue) {
+                    ((NetworkQueue) mQueue).release(request);
+                }
             }
         }
     }
@@ -0,0 +1,291 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhi.volley;
+
+import android.os.SystemClock;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The {@link NetworkDispatcher} threads of a {@link RequestQueue}, between a minimum and a
+ * maximum number.
+ * <p/>
+ * A dispatcher is added whenever the network queue gets deeper than a threshold, or a request
+ * waited in it longer than a threshold, and retires after staying idle for a while as long as
+ * more than the minimum are left. With equal minimum and maximum, this is a fixed pool.
+ * <p/>
+ * Growth is checked when a request is queued or taken, and by a watchdog thread while requests
+ * are queued, as every dispatcher may be stuck on a slow request with nothing else happening.
+ */
+class NetworkDispatcherPool {
+    /**
+     * Weight of the last sample in the moving average of queue waits, in 1/8ths.
+     */
+    private static final int WAIT_AVERAGE_WEIGHT = 2;
+
+    /**
+     * Shortest time between two checks of the watchdog.
+     */
+    private static final long MIN_WATCH_INTERVAL_MS = 20;
+
+    private final NetworkQueue mQueue;
+    private final Network mNetwork;
+    private final Cache mCache;
+    private final ResponseDelivery mDelivery;
+
+    private final int mMinSize;
+    private final int mMaxSize;
+    private final long mIdleTimeoutMillis;
+    private final int mGrowQueueDepth;
+    private final long mGrowQueueWaitMillis;
+
+    private final Set<NetworkDispatcher> mDispatchers =
+            Collections.newSetFromMap(new ConcurrentHashMap<NetworkDispatcher, Boolean>());
+
+    /**
+     * Number of dispatchers running or about to, counted before they start so that concurrent
+     * growth never goes past the maximum.
+     */
+    private final AtomicInteger mSize = new AtomicInteger();
+
+    private volatile boolean mStopped;
+
+    /**
+     * Watchdog thread checking growth while requests are queued, or null if none runs.
+     */
+    private final AtomicReference<Thread> mWatchdog = new AtomicReference<Thread>();
+
+    /**
+     * Moving average of the time requests waited in the queue. Updated without
+     * synchronization, as a lost sample does not matter.
+     */
+    private volatile long mAverageQueueWaitMillis;
+
+    private volatile long mMaxQueueWaitMillis;
+
+    /**
+     * @param minSize             Number of dispatchers kept even when idle.
+     * @param maxSize             Maximum number of dispatchers.
+     * @param idleTimeoutMillis   Time a dispatcher beyond the minimum stays idle before retiring.
+     * @param growQueueDepth      Number of requests ready to run past which a dispatcher is
+     *                            added.
+     * @param growQueueWaitMillis Queue wait past which a dispatcher is added.
+     */
+    NetworkDispatcherPool(NetworkQueue queue, Network network, Cache cache,
+            ResponseDelivery delivery, int minSize, int maxSize, long idleTimeoutMillis,
+            int growQueueDepth, long growQueueWaitMillis) {
+        mQueue = queue;
+        mNetwork = network;
+        mCache = cache;
+        mDelivery = delivery;
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        mGrowQueueDepth = growQueueDepth;
+        mGrowQueueWaitMillis = growQueueWaitMillis;
+    }
+
+    /**
+     * Starts the minimum number of dispatchers.
+     */
+    void start() {
+        for (int i = 0; i < mMinSize; i++) {
+            grow();
+        }
+    }
+
+    /**
+     * Stops all dispatchers; the pool cannot be started again.
+     */
+    void stop() {
+        mStopped = true;
+        Thread watchdog = mWatchdog.get();
+        if (watchdog != null) {
+            watchdog.interrupt();
+        }
+        for (NetworkDispatcher dispatcher : mDispatchers) {
+            dispatcher.quit();
+        }
+        mDispatchers.clear();
+    }
+
+    /**
+     * Called after a request has been put in the queue.
+     */
+    void onEnqueued() {
+        growIfBehind();
+        watch();
+    }
+
+    /**
+     * Adds a dispatcher if the queue is deeper or its next request older than the thresholds.
+     */
+    private void growIfBehind() {
+        // Requests held back by their host limit would not keep another dispatcher busy.
+        if (mSize.get() == 0 || mQueue.getReadyCount() > mGrowQueueDepth) {
+            grow();
+            return;
+        }
+        // The next request to go still waiting that long means every dispatcher is busy.
+        Request<?> next = mQueue.peek();
+        if (next != null && SystemClock.elapsedRealtime() - next.getNetworkQueuedTime()
+                > mGrowQueueWaitMillis) {
+            grow();
+        }
+    }
+
+    /**
+     * Starts the watchdog unless it runs already or the pool cannot grow. It checks growth
+     * every queue wait threshold, and exits once no request is ready to run.
+     */
+    private void watch() {
+        if (mStopped || mSize.get() >= mMaxSize || mWatchdog.get() != null) {
+            return;
+        }
+        Thread watchdog = new Thread("NetworkDispatcherPool-watchdog") {
+            @Override
+            public void run() {
+                final long interval = Math.max(mGrowQueueWaitMillis, MIN_WATCH_INTERVAL_MS);
+                try {
+                    while (!mStopped && mSize.get() < mMaxSize
+                            && mQueue.getReadyCount() > 0) {
+                        Thread.sleep(interval);
+                        growIfBehind();
+                    }
+                } catch (InterruptedException ignored) {
+                    // Stopped.
+                } finally {
+                    mWatchdog.compareAndSet(this, null);
+                }
+                // A request queued while exiting may have seen this watchdog still there.
+                if (mQueue.getReadyCount() > 0) {
+                    watch();
+                }
+            }
+        };
+        if (mWatchdog.compareAndSet(null, watchdog)) {
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+    }
+
+    /**
+     * Called by a dispatcher which took the given request from the queue.
+     */
+    void onTaken(Request<?> request) {
+        final long wait = SystemClock.elapsedRealtime() - request.getNetworkQueuedTime();
+        mAverageQueueWaitMillis += (wait - mAverageQueueWaitMillis) * WAIT_AVERAGE_WEIGHT / 8;
+        if (wait > mMaxQueueWaitMillis) {
+            mMaxQueueWaitMillis = wait;
+        }
+        // Only worth another dispatcher if more requests are waiting behind this one.
+        if (wait > mGrowQueueWaitMillis && mQueue.getReadyCount() > 0) {
+            grow();
+        }
+    }
+
+    /**
+     * Called by a dispatcher which stayed idle for the idle timeout.
+     *
+     * @return true if the dispatcher has to exit, false to keep waiting for requests.
+     */
+    boolean retire(NetworkDispatcher dispatcher) {
+        while (true) {
+            final int size = mSize.get();
+            if (size <= mMinSize) {
+                return false;
+            }
+            if (mSize.compareAndSet(size, size - 1)) {
+                // An offer() racing with this may have counted on this dispatcher and not
+                // grown the pool; stay for its request rather than leave it stranded.
+                if (mQueue.getReadyCount() > 0 && unretire()) {
+                    return false;
+                }
+                mDispatchers.remove(dispatcher);
+                if (VolleyLog.DEBUG) {
+                    VolleyLog.v("Network dispatcher retired, %d left", size - 1);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Counts a dispatcher which was retiring back in.
+     *
+     * @return false if the pool has grown to its maximum meanwhile, so the dispatcher has to
+     * exit after all.
+     */
+    private boolean unretire() {
+        while (true) {
+            final int size = mSize.get();
+            if (mStopped || size >= mMaxSize) {
+                return false;
+            }
+            if (mSize.compareAndSet(size, size + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns how long a dispatcher beyond the minimum waits for a request before retiring,
+     * or 0 if none may retire.
+     */
+    long getIdleTimeoutMillis() {
+        return mMinSize < mMaxSize ? mIdleTimeoutMillis : 0;
+    }
+
+    int getSize() {
+        return mSize.get();
+    }
+
+    long getAverageQueueWaitMillis() {
+        return mAverageQueueWaitMillis;
+    }
+
+    long getMaxQueueWaitMillis() {
+        return mMaxQueueWaitMillis;
+    }
+
+    private void grow() {
+        while (true) {
+            final int size = mSize.get();
+            if (mStopped || size >= mMaxSize) {
+                return;
+            }
+            if (mSize.compareAndSet(size, size + 1)) {
+                break;
+            }
+        }
+        NetworkDispatcher dispatcher = new NetworkDispatcher(mQueue, mNetwork, mCache, mDelivery,
+                this);
+        mDispatchers.add(dispatcher);
+        dispatcher.start();
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Network dispatcher added, %d running", mSize.get());
+        }
+        if (mStopped) {
+            // Raced with stop(), which may not have seen it.
+            dispatcher.quit();
+        }
+    }
+}
@@ -0,0 +1,508 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhi.volley;
+
+import android.os.SystemClock;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of the requests going out to the network, which limits how many requests to a host run
+ * at once and takes turns between hosts.
+ * <p/>
+ * Requests are grouped by host, as told by {@link Request#getTrafficStatsTag()}. The next
+ * request comes from the host with the most urgent request among those below their limit,
+ * going round the hosts which are equally urgent, so that one slow host cannot hold every
+ * dispatcher while requests to others wait. A request taken counts towards the limit of its
+ * host until {@link #release(Request)} is called for it.
+ * <p/>
+ * Within a priority, requests go in {@link Request#compareTo} order: earliest deadline first,
+ * then first in first out. The priority a request competes with rises by one level for every
+ * aging interval it has waited, so that low priority requests do not starve under a steady
+ * flow of higher priority ones; it never reaches {@link Request.Priority#IMMEDIATE} this way.
+ */
+public class NetworkQueue extends AbstractQueue<Request<?>>
+        implements BlockingQueue<Request<?>> {
+    /**
+     * Default maximum number of requests to a host running at once.
+     */
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 4;
+
+    /**
+     * Default time a request waits before competing with the next priority up.
+     */
+    public static final long DEFAULT_AGING_INTERVAL_MS = 2000;
+
+    private static final int PRIORITY_LEVELS = Request.Priority.values().length;
+
+    /**
+     * Highest priority reached by aging.
+     */
+    private static final int MAX_AGED_PRIORITY = Request.Priority.IMMEDIATE.ordinal() - 1;
+
+    /**
+     * The hosts with requests queued or running, by traffic stats tag. A host is dropped once
+     * it has neither, so that the map does not grow with every host ever seen.
+     */
+    private final Map<Integer, Host> mHosts = new HashMap<Integer, Host>();
+
+    /**
+     * The hosts with queued requests, in turn order.
+     */
+    private final List<Host> mQueuedHosts = new ArrayList<Host>();
+
+    /**
+     * Index in {@link #mQueuedHosts} of the host whose turn is next.
+     */
+    private int mNextHost;
+
+    private int mSize;
+
+    private int mMaxRequestsPerHost;
+
+    private long mAgingIntervalMillis = DEFAULT_AGING_INTERVAL_MS;
+
+    public NetworkQueue() {
+        this(DEFAULT_MAX_REQUESTS_PER_HOST);
+    }
+
+    /**
+     * @param maxRequestsPerHost Maximum number of requests to a host running at once.
+     */
+    public NetworkQueue(int maxRequestsPerHost) {
+        setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    /**
+     * Sets the maximum number of requests to a host running at once.
+     */
+    public synchronized void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost must be positive");
+        }
+        mMaxRequestsPerHost = maxRequestsPerHost;
+        notifyAll();
+    }
+
+    /**
+     * Sets the time a request waits before competing with the next priority up, or 0 not to
+     * raise priorities with time.
+     */
+    public synchronized void setAgingInterval(long agingIntervalMs) {
+        mAgingIntervalMillis = agingIntervalMs;
+    }
+
+    /**
+     * Changes the priority of the given request, moving it to the band of its new priority if
+     * it is queued here. Its queued time is kept, so the time it already waited still counts
+     * towards aging.
+     */
+    public synchronized void setPriority(Request<?> request, Request.Priority priority) {
+        Host host = mHosts.get(request.getTrafficStatsTag());
+        if (host != null && host.remove(request)) {
+            request.applyPriority(priority);
+            host.add(request);
+        } else {
+            request.applyPriority(priority);
+        }
+    }
+
+    /**
+     * Tells that the given request, taken from this queue, is done with the network, so that
+     * another request to its host may run.
+     */
+    public synchronized void release(Request<?> request) {
+        Host host = mHosts.get(request.getTrafficStatsTag());
+        if (host != null && host.running > 0) {
+            host.running--;
+            if (host.size > 0) {
+                notifyAll();
+            } else {
+                dropIfIdle(host);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean offer(Request<?> request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        request.setNetworkQueuedTime(SystemClock.elapsedRealtime());
+        final int tag = request.getTrafficStatsTag();
+        Host host = mHosts.get(tag);
+        if (host == null) {
+            host = new Host(tag);
+            mHosts.put(tag, host);
+        }
+        if (host.size == 0) {
+            mQueuedHosts.add(host);
+        }
+        host.add(request);
+        mSize++;
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public boolean offer(Request<?> request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public void put(Request<?> request) {
+        offer(request);
+    }
+
+    @Override
+    public synchronized Request<?> poll() {
+        return next(true);
+    }
+
+    /**
+     * Returns the request which would be taken next, or null if none may run now.
+     */
+    @Override
+    public synchronized Request<?> peek() {
+        return next(false);
+    }
+
+    @Override
+    public synchronized Request<?> take() throws InterruptedException {
+        Request<?> request;
+        while ((request = next(true)) == null) {
+            wait();
+        }
+        return request;
+    }
+
+    @Override
+    public synchronized Request<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Request<?> request;
+        while ((request = next(true)) == null) {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            // wait(0) would wait forever.
+            wait(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+        }
+        return request;
+    }
+
+    @Override
+    public synchronized boolean remove(Object o) {
+        if (!(o instanceof Request)) {
+            return false;
+        }
+        Host host = mHosts.get(((Request<?>) o).getTrafficStatsTag());
+        if (host == null) {
+            return false;
+        }
+        if (!host.remove(o)) {
+            return false;
+        }
+        mSize--;
+        if (host.size == 0) {
+            dequeueHost(mQueuedHosts.indexOf(host));
+            dropIfIdle(host);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        for (Host host : mQueuedHosts) {
+            host.clear();
+            dropIfIdle(host);
+        }
+        mQueuedHosts.clear();
+        mNextHost = 0;
+        mSize = 0;
+    }
+
+    @Override
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the number of queued requests whose host is below its limit, and could be taken
+     * right away.
+     */
+    public synchronized int getReadyCount() {
+        int count = 0;
+        for (Host host : mQueuedHosts) {
+            if (host.running < mMaxRequestsPerHost) {
+                count += host.size;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized int drainTo(Collection<? super Request<?>> c, int maxElements) {
+        int count = 0;
+        Request<?> request;
+        while (count < maxElements && (request = next(true)) != null) {
+            c.add(request);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queued requests, in no particular order.
+     */
+    @Override
+    public synchronized Iterator<Request<?>> iterator() {
+        final List<Request<?>> snapshot = new ArrayList<Request<?>>(mSize);
+        for (Host host : mQueuedHosts) {
+            for (PriorityQueue<Request<?>> band : host.bands) {
+                snapshot.addAll(band);
+            }
+        }
+        return new Iterator<Request<?>>() {
+            private int mIndex;
+
+            @Override
+            public boolean hasNext() {
+                return mIndex < snapshot.size();
+            }
+
+            @Override
+            public Request<?> next() {
+                if (mIndex >= snapshot.size()) {
+                    throw new NoSuchElementException();
+                }
+                return snapshot.get(mIndex++);
+            }
+
+            @Override
+            public void remove() {
+                if (mIndex == 0) {
+                    throw new IllegalStateException();
+                }
+                NetworkQueue.this.remove(snapshot.get(mIndex - 1));
+            }
+        };
+    }
+
+    /**
+     * Returns the statistics of the hosts with requests queued or running, by traffic stats
+     * tag. Those of a host start over once it has neither.
+     */
+    public synchronized Map<Integer, HostStats> getHostStats() {
+        Map<Integer, HostStats> stats = new HashMap<Integer, HostStats>();
+        for (Host host : mHosts.values()) {
+            stats.put(host.tag, new HostStats(host));
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * Finds the next request to run, going round the hosts below their limit, and takes it
+     * out of the queue if asked to.
+     */
+    private Request<?> next(boolean remove) {
+        final long now = SystemClock.elapsedRealtime();
+        final int count = mQueuedHosts.size();
+        Host best = null;
+        int bestIndex = -1;
+        PriorityQueue<Request<?>> bestBand = null;
+        int bestPriority = -1;
+        for (int i = 0; i < count; i++) {
+            final int index = (mNextHost + i) % count;
+            Host host = mQueuedHosts.get(index);
+            final boolean full = host.running >= mMaxRequestsPerHost;
+            // Only a more urgent request jumps the turn order; within a host, the higher
+            // priority wins a tie with an aged lower one. A canceled request goes first
+            // whatever the limit, as its dispatcher only drops it.
+            for (int level = PRIORITY_LEVELS - 1; level >= 0; level--) {
+                Request<?> head = host.bands.get(level).peek();
+                if (head == null || (full && !head.isCanceled())) {
+                    continue;
+                }
+                final int priority = head.isCanceled()
+                        ? PRIORITY_LEVELS : getEffectivePriority(level, head, now);
+                if (priority > bestPriority) {
+                    best = host;
+                    bestIndex = index;
+                    bestBand = host.bands.get(level);
+                    bestPriority = priority;
+                }
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        if (!remove) {
+            return bestBand.peek();
+        }
+        Request<?> request = bestBand.poll();
+        best.size--;
+        mSize--;
+        best.running++;
+        best.dispatched++;
+        best.totalWaitMillis += SystemClock.elapsedRealtime() - request.getNetworkQueuedTime();
+        if (best.size == 0) {
+            // The host after it moves into its place, and has the next turn.
+            mQueuedHosts.remove(bestIndex);
+            mNextHost = bestIndex;
+        } else {
+            mNextHost = bestIndex + 1;
+        }
+        if (mNextHost >= mQueuedHosts.size()) {
+            mNextHost = 0;
+        }
+        return request;
+    }
+
+    /**
+     * Returns the priority level the given request, queued at the given level, competes with.
+     * The oldest requests of a level are not always at its head, as deadlines go first; they
+     * age the level once the requests ahead of them went.
+     */
+    private int getEffectivePriority(int level, Request<?> head, long now) {
+        if (mAgingIntervalMillis <= 0 || level >= MAX_AGED_PRIORITY) {
+            return level;
+        }
+        final long aged = level + (now - head.getNetworkQueuedTime()) / mAgingIntervalMillis;
+        return (int) Math.min(aged, MAX_AGED_PRIORITY);
+    }
+
+    /**
+     * Takes a host whose queue emptied out of the turn order, keeping the turn where it is.
+     */
+    private void dequeueHost(int index) {
+        mQueuedHosts.remove(index);
+        if (index < mNextHost) {
+            mNextHost--;
+        }
+        if (mNextHost >= mQueuedHosts.size()) {
+            mNextHost = 0;
+        }
+    }
+
+    /**
+     * Forgets the given host if it has no request queued or running.
+     */
+    private void dropIfIdle(Host host) {
+        if (host.size == 0 && host.running == 0) {
+            mHosts.remove(host.tag);
+        }
+    }
+
+    private static class Host {
+        final int tag;
+        /**
+         * Queued requests by priority level.
+         */
+        final List<PriorityQueue<Request<?>>> bands;
+        int size;
+        int running;
+        long dispatched;
+        long totalWaitMillis;
+
+        Host(int tag) {
+            this.tag = tag;
+            bands = new ArrayList<PriorityQueue<Request<?>>>(PRIORITY_LEVELS);
+            for (int i = 0; i < PRIORITY_LEVELS; i++) {
+                bands.add(new PriorityQueue<Request<?>>());
+            }
+        }
+
+        void add(Request<?> request) {
+            bands.get(request.getPriority().ordinal()).add(request);
+            size++;
+        }
+
+        boolean remove(Object request) {
+            for (PriorityQueue<Request<?>> band : bands) {
+                // By identity, as requests do not override equals().
+                for (Iterator<Request<?>> it = band.iterator(); it.hasNext(); ) {
+                    if (it.next() == request) {
+                        it.remove();
+                        size--;
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        void clear() {
+            for (PriorityQueue<Request<?>> band : bands) {
+                band.clear();
+            }
+            size = 0;
+        }
+    }
+
+    /**
+     * Snapshot of the requests to a host.
+     */
+    public static class HostStats {
+        /** The traffic stats tag of the host, the hash code of its name. */
+        public final int host;
+        /** Requests waiting in the queue. */
+        public final int queued;
+        /** Requests taken from the queue and not released yet. */
+        public final int running;
+        /** Requests taken from the queue so far. */
+        public final long dispatched;
+        /** Average time the requests taken waited in the queue. */
+        public final long averageWaitMillis;
+
+        HostStats(Host h) {
+            host = h.tag;
+            queued = h.size;
+            running = h.running;
+            dispatched = h.dispatched;
+            averageWaitMillis = h.dispatched > 0 ? h.totalWaitMillis / h.dispatched : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "host 0x" + Integer.toHexString(host) + ": " + queued + " queued, " + running
+                    + " running, " + dispatched + " dispatched, " + averageWaitMillis
+                    + " ms average wait";
+        }
+    }
+}
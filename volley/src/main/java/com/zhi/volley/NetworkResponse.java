@@ -33,14 +33,21 @@ public class NetworkResponse {
      * @param headers       Headers returned with this response, or null for none
      * @param notModified   True if the server returned a 304 and the data was already in cache
      * @param networkTimeMs Round-trip network time to receive network response
+     * @param fileBody      Response body on disk, for requests not kept in memory
      */
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
-            boolean notModified, long networkTimeMs) {
+            boolean notModified, long networkTimeMs, Cache.FileBody fileBody) {
         this.statusCode = statusCode;
         this.data = data;
         this.headers = headers;
         this.notModified = notModified;
         this.networkTimeMs = networkTimeMs;
+        this.fileBody = fileBody;
+    }
+
+    public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
+            boolean notModified, long networkTimeMs) {
+        this(statusCode, data, headers, notModified, networkTimeMs, null);
     }
 
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
@@ -56,6 +63,10 @@ public class NetworkResponse {
         this(HttpStatus.SC_OK, data, headers, false, 0);
     }
 
+    public NetworkResponse(byte[] data, Map<String, String> headers, Cache.FileBody fileBody) {
+        this(HttpStatus.SC_OK, data, headers, false, 0, fileBody);
+    }
+
     /** The HTTP status code. */
     public final int statusCode;
     /** Raw data from this response. */
@@ -66,4 +77,6 @@ public class NetworkResponse {
     public final boolean notModified;
     /** Network roundtrip time in milliseconds. */
     public final long networkTimeMs;
+    /** Response body on disk if the request is not kept in memory, null otherwise. */
+    public final Cache.FileBody fileBody;
 }
\ No newline at end of file
@@ -20,6 +20,7 @@ import com.zhi.volley.VolleyLog.MarkerLog;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import java.io.UnsupportedEncodingException;
@@ -90,6 +91,23 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     private RequestQueue mRequestQueue;
 
+    /**
+     * When this request was last put in the network queue, in
+     * {@link SystemClock#elapsedRealtime()} time.
+     */
+    private volatile long mNetworkQueuedTime;
+
+    /**
+     * The priority of this request, changed while it is queued only by {@link RequestQueue}.
+     */
+    private volatile Priority mPriority = Priority.NORMAL;
+
+    /**
+     * Time by which this request has to go out to the network, in
+     * {@link SystemClock#elapsedRealtime()} time, or 0 if none.
+     */
+    private long mDeadline;
+
     /**
      * Whether or not responses to this request should be cached.
      */
@@ -106,9 +124,10 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     private boolean mToNetwork = true;
 
     /**
-     * Whether or not this request has been canceled.
+     * Whether or not this request has been canceled. Read by the network queue on dispatcher
+     * threads, without a lock shared with {@link #cancel()}.
      */
-    private boolean mCanceled = false;
+    private volatile boolean mCanceled = false;
 
     /**
      * Whether or not a response has been delivered for this request yet.
@@ -169,7 +188,8 @@ public abstract class Request<T> implements Comparable<Request<T>> {
 
     /**
      * Set a tag on this request. Can be used to cancel all requests with this
-     * tag by {@link RequestQueue#cancelAll(Object)}.
+     * tag by {@link RequestQueue#cancelAll(Object)}, and must be set before the
+     * request is added to the queue for that.
      *
      * @return This Request object to allow for chaining.
      */
@@ -270,6 +290,13 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return this;
     }
 
+    /**
+     * Returns the queue this request was added to, or null if it was not.
+     */
+    RequestQueue getRequestQueue() {
+        return mRequestQueue;
+    }
+
     /**
      * Sets the sequence number of this request.  Used by {@link RequestQueue}.
      *
@@ -280,6 +307,46 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return this;
     }
 
+    /**
+     * Sets the time within which this request has to go out to the network. A request still
+     * waiting for a network dispatcher past its deadline is dropped, and fails with a
+     * {@link DeadlineExceededError}. Among requests of the same priority, the one with the
+     * earliest deadline goes first. Must be set before the request is added to the queue.
+     *
+     * @param timeoutMs The time from now, or 0 for no deadline.
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setDeadline(long timeoutMs) {
+        mDeadline = timeoutMs > 0 ? SystemClock.elapsedRealtime() + timeoutMs : 0;
+        return this;
+    }
+
+    /**
+     * Returns the time by which this request has to go out to the network, in
+     * {@link SystemClock#elapsedRealtime()} time, or 0 if it has no deadline.
+     */
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    /**
+     * Returns true if this request has a deadline, and it has passed.
+     */
+    public boolean isPastDeadline() {
+        return mDeadline > 0 && SystemClock.elapsedRealtime() > mDeadline;
+    }
+
+    /**
+     * Returns when this request was last put in the network queue.
+     */
+    long getNetworkQueuedTime() {
+        return mNetworkQueuedTime;
+    }
+
+    void setNetworkQueuedTime(long time) {
+        mNetworkQueuedTime = time;
+    }
+
     /**
      * Returns the sequence number of this request.
      */
@@ -528,7 +595,7 @@ public abstract class Request<T> implements Comparable<Request<T>> {
 
     /**
      * Priority values.  Requests will be processed from higher priorities to
-     * lower priorities, in FIFO order.
+     * lower priorities, earliest deadline first, then in FIFO order.
      */
     public enum Priority {
         LOW,
@@ -539,9 +606,65 @@ public abstract class Request<T> implements Comparable<Request<T>> {
 
     /**
      * Returns the {@link Request.Priority} of this request; {@link Request.Priority#NORMAL} by default.
+     * <p/>
+     * Subclasses overriding this opt out of {@link #setPriority(Priority)}.
      */
     public Priority getPriority() {
-        return Priority.NORMAL;
+        return mPriority;
+    }
+
+    /**
+     * Changes the priority of this request. A request still waiting in the cache or network
+     * queue is moved to the place of its new priority at once, ahead of requests it now
+     * outranks; one already being dispatched is not affected until it is queued again.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> setPriority(Priority priority) {
+        if (priority == null) {
+            throw new IllegalArgumentException("Cannot set a null priority");
+        }
+        final RequestQueue queue = mRequestQueue;
+        if (queue == null) {
+            mPriority = priority;
+        } else {
+            queue.setPriority(this, priority);
+        }
+        return this;
+    }
+
+    /**
+     * Raises the priority of this request by one level, up to {@link Priority#HIGH}.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> boost() {
+        final int level = getPriority().ordinal();
+        if (level < Priority.HIGH.ordinal()) {
+            setPriority(Priority.values()[level + 1]);
+        }
+        return this;
+    }
+
+    /**
+     * Lowers the priority of this request by one level, down to {@link Priority#LOW}.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public Request<?> demote() {
+        final int level = getPriority().ordinal();
+        if (level > Priority.LOW.ordinal() && level <= Priority.HIGH.ordinal()) {
+            setPriority(Priority.values()[level - 1]);
+        }
+        return this;
+    }
+
+    /**
+     * Stores the priority without moving the request; the caller has taken it out of any
+     * queue ordered by priority first.
+     */
+    void applyPriority(Priority priority) {
+        mPriority = priority;
     }
 
     /**
@@ -630,10 +753,18 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         Priority right = other.getPriority();
 
         // High-priority requests are "lesser" so they are sorted to the front.
-        // Equal priorities are sorted by sequence number to provide FIFO ordering.
-        return left == right ?
-                this.mSequence - other.mSequence :
-                right.ordinal() - left.ordinal();
+        if (left != right) {
+            return right.ordinal() - left.ordinal();
+        }
+        // Equal priorities are sorted earliest deadline first, requests without one last.
+        if (this.mDeadline != other.mDeadline) {
+            if (this.mDeadline == 0 || other.mDeadline == 0) {
+                return this.mDeadline == 0 ? 1 : -1;
+            }
+            return this.mDeadline < other.mDeadline ? -1 : 1;
+        }
+        // Then by sequence number to provide FIFO ordering.
+        return this.mSequence - other.mSequence;
     }
 
     @Override
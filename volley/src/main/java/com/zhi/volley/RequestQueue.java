@@ -18,15 +18,16 @@ import android.os.Handler;
 import android.os.Looper;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A request dispatch queue with a thread pool of dispatchers.
@@ -54,19 +55,28 @@ public class RequestQueue {
      * <ul>
      * <li>containsKey(cacheKey) indicates that there is a request in flight for the given cache
      * key.</li>
-     * <li>get(cacheKey) returns waiting requests for the given cache key. The in flight request
-     * is <em>not</em> contained in that list. Is null if no requests are staged.</li>
+     * <li>get(cacheKey) holds the waiting requests for the given cache key. The in flight
+     * request is <em>not</em> contained in that list.</li>
      * </ul>
+     * Lock-free, so that adding a request never waits for a dispatcher finishing another.
      */
-    protected final Map<String, Queue<Request<?>>> mWaitingRequests =
-            new HashMap<String, Queue<Request<?>>>();
+    private final ConcurrentHashMap<String, WaitingList> mWaitingRequests =
+            new ConcurrentHashMap<String, WaitingList>();
 
     /**
      * The set of all requests currently being processed by this RequestQueue. A Request
      * will be in this set if it is waiting in any queue or currently being processed by
      * any dispatcher.
      */
-    private final Set<Request<?>> mCurrentRequests = new HashSet<Request<?>>();
+    private final Set<Request<?>> mCurrentRequests =
+            Collections.newSetFromMap(new ConcurrentHashMap<Request<?>, Boolean>());
+
+    /**
+     * The requests of {@link #mCurrentRequests} which have a tag, by tag, so that
+     * {@link #cancelAll(Object)} only visits the matching ones.
+     */
+    private final ConcurrentHashMap<TagKey, TaggedRequests> mTaggedRequests =
+            new ConcurrentHashMap<TagKey, TaggedRequests>();
 
     /**
      * The cache triage queue.
@@ -75,15 +85,47 @@ public class RequestQueue {
             new PriorityBlockingQueue<Request<?>>();
 
     /**
-     * The queue of requests that are actually going out to the network.
+     * The queue of requests that are actually going out to the network. Lets the dispatcher
+     * pool grow if it gets too deep.
      */
-    protected final PriorityBlockingQueue<Request<?>> mNetworkQueue =
-            new PriorityBlockingQueue<Request<?>>();
+    protected final NetworkQueue mNetworkQueue =
+            new NetworkQueue() {
+                @Override
+                public boolean offer(Request<?> request) {
+                    final boolean added = super.offer(request);
+                    NetworkDispatcherPool pool = mDispatcherPool;
+                    if (pool != null) {
+                        pool.onEnqueued();
+                    }
+                    return added;
+                }
+            };
+
+    /**
+     * Number of network request dispatcher threads kept when idle by default.
+     */
+    private static final int DEFAULT_MIN_NETWORK_THREAD_POOL_SIZE = 1;
+
+    /**
+     * Maximum number of network request dispatcher threads by default.
+     */
+    private static final int DEFAULT_MAX_NETWORK_THREAD_POOL_SIZE = 8;
+
+    /**
+     * Time a network dispatcher thread beyond the minimum stays idle before it ends.
+     */
+    private static final long DEFAULT_NETWORK_THREAD_IDLE_TIMEOUT_MS = 30 * 1000;
 
     /**
-     * Number of network request dispatcher threads to start.
+     * Network queue depth past which another dispatcher thread is started.
      */
-    private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
+    private static final int DEFAULT_GROW_QUEUE_DEPTH = 4;
+
+    /**
+     * Time a request may wait in the network queue before another dispatcher thread is
+     * started.
+     */
+    private static final long DEFAULT_GROW_QUEUE_WAIT_MS = 200;
 
     /**
      * Cache interface for retrieving and storing responses.
@@ -100,10 +142,16 @@ public class RequestQueue {
      */
     protected final ResponseDelivery mDelivery;
 
+    private final int mMinDispatchers;
+    private final int mMaxDispatchers;
+    private long mIdleTimeoutMs = DEFAULT_NETWORK_THREAD_IDLE_TIMEOUT_MS;
+    private int mGrowQueueDepth = DEFAULT_GROW_QUEUE_DEPTH;
+    private long mGrowQueueWaitMs = DEFAULT_GROW_QUEUE_WAIT_MS;
+
     /**
-     * The network dispatchers.
+     * The network dispatchers, or null if not started.
      */
-    protected NetworkDispatcher[] mDispatchers;
+    private volatile NetworkDispatcherPool mDispatcherPool;
 
     /**
      * The cache dispatcher.
@@ -111,7 +159,37 @@ public class RequestQueue {
     protected CacheDispatcher mCacheDispatcher;
 
     private final List<RequestFinishedListener> mFinishedListeners =
-            new ArrayList<RequestFinishedListener>();
+            new CopyOnWriteArrayList<RequestFinishedListener>();
+
+    /**
+     * Cache lookups made for each request class, to tell which kinds of request the cache
+     * serves well.
+     */
+    private final ConcurrentHashMap<Class<?>, CacheStats.Counter> mCacheStatsByType =
+            new ConcurrentHashMap<Class<?>, CacheStats.Counter>();
+
+    /**
+     * Creates the worker pool, with a number of network dispatcher threads which varies
+     * with the load. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache             A Cache to use for persisting responses to disk
+     * @param network           A Network interface for performing HTTP requests
+     * @param minThreadPoolSize Number of network dispatcher threads kept when idle
+     * @param maxThreadPoolSize Maximum number of network dispatcher threads
+     * @param delivery          A ResponseDelivery interface for posting responses and errors
+     */
+    public RequestQueue(Cache cache, Network network, int minThreadPoolSize,
+            int maxThreadPoolSize, ResponseDelivery delivery) {
+        if (minThreadPoolSize < 0 || maxThreadPoolSize < Math.max(minThreadPoolSize, 1)) {
+            throw new IllegalArgumentException("Bad network thread pool size "
+                    + minThreadPoolSize + ".." + maxThreadPoolSize);
+        }
+        mCache = cache;
+        mNetwork = network;
+        mMinDispatchers = minThreadPoolSize;
+        mMaxDispatchers = maxThreadPoolSize;
+        mDelivery = delivery;
+    }
 
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
@@ -123,10 +201,7 @@ public class RequestQueue {
      */
     public RequestQueue(Cache cache, Network network, int threadPoolSize,
             ResponseDelivery delivery) {
-        mCache = cache;
-        mNetwork = network;
-        mDispatchers = new NetworkDispatcher[threadPoolSize];
-        mDelivery = delivery;
+        this(cache, network, threadPoolSize, threadPoolSize, delivery);
     }
 
     /**
@@ -148,7 +223,56 @@ public class RequestQueue {
      * @param network A Network interface for performing HTTP requests
      */
     public RequestQueue(Cache cache, Network network) {
-        this(cache, network, DEFAULT_NETWORK_THREAD_POOL_SIZE);
+        this(cache, network, DEFAULT_MIN_NETWORK_THREAD_POOL_SIZE,
+                DEFAULT_MAX_NETWORK_THREAD_POOL_SIZE,
+                new ExecutorDelivery(new Handler(Looper.getMainLooper())));
+    }
+
+    /**
+     * Sets the maximum number of requests to a host running at once, so that a slow host
+     * cannot hold every network dispatcher thread.
+     *
+     * @return This RequestQueue object to allow for chaining.
+     */
+    public RequestQueue setMaxNetworkRequestsPerHost(int maxRequestsPerHost) {
+        mNetworkQueue.setMaxRequestsPerHost(maxRequestsPerHost);
+        return this;
+    }
+
+    /**
+     * Sets the time a request waits for the network before competing with the next priority
+     * up, or 0 not to raise priorities with time.
+     *
+     * @return This RequestQueue object to allow for chaining.
+     */
+    public RequestQueue setNetworkPriorityAging(long agingIntervalMs) {
+        mNetworkQueue.setAgingInterval(agingIntervalMs);
+        return this;
+    }
+
+    /**
+     * Sets how long a network dispatcher thread beyond the minimum stays idle before it ends.
+     * Takes effect on the next {@link #start()}.
+     *
+     * @return This RequestQueue object to allow for chaining.
+     */
+    public RequestQueue setNetworkThreadIdleTimeout(long idleTimeoutMs) {
+        mIdleTimeoutMs = idleTimeoutMs;
+        return this;
+    }
+
+    /**
+     * Sets when another network dispatcher thread is started, up to the maximum. Takes effect
+     * on the next {@link #start()}.
+     *
+     * @param queueDepth  Number of requests waiting for the network past which to start one.
+     * @param queueWaitMs Time a request waited for the network past which to start one.
+     * @return This RequestQueue object to allow for chaining.
+     */
+    public RequestQueue setNetworkThreadGrowthThresholds(int queueDepth, long queueWaitMs) {
+        mGrowQueueDepth = queueDepth;
+        mGrowQueueWaitMs = queueWaitMs;
+        return this;
     }
 
     /**
@@ -160,12 +284,15 @@ public class RequestQueue {
         mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
         mCacheDispatcher.start();
 
-        // Create network dispatchers (and corresponding threads) up to the pool size.
-        for (int i = 0; i < mDispatchers.length; i++) {
-            NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
-                    mCache, mDelivery);
-            mDispatchers[i] = networkDispatcher;
-            networkDispatcher.start();
+        // Start the minimum of network dispatchers; more are started as requests pile up.
+        NetworkDispatcherPool pool = new NetworkDispatcherPool(mNetworkQueue, mNetwork, mCache,
+                mDelivery, mMinDispatchers, mMaxDispatchers, mIdleTimeoutMs, mGrowQueueDepth,
+                mGrowQueueWaitMs);
+        mDispatcherPool = pool;
+        pool.start();
+        // Requests may have been queued before starting.
+        if (!mNetworkQueue.isEmpty()) {
+            pool.onEnqueued();
         }
     }
 
@@ -176,13 +303,54 @@ public class RequestQueue {
         if (mCacheDispatcher != null) {
             mCacheDispatcher.quit();
         }
-        for (NetworkDispatcher dispatcher : mDispatchers) {
-            if (dispatcher != null) {
-                dispatcher.quit();
-            }
+        NetworkDispatcherPool pool = mDispatcherPool;
+        if (pool != null) {
+            mDispatcherPool = null;
+            pool.stop();
         }
     }
 
+    /**
+     * Returns the number of network dispatcher threads currently running.
+     */
+    public int getNetworkThreadCount() {
+        NetworkDispatcherPool pool = mDispatcherPool;
+        return pool != null ? pool.getSize() : 0;
+    }
+
+    /**
+     * Returns the number of requests waiting for a network dispatcher.
+     */
+    public int getNetworkQueueDepth() {
+        return mNetworkQueue.size();
+    }
+
+    /**
+     * Returns the network queue statistics of every host requested, by
+     * {@link Request#getTrafficStatsTag()}.
+     */
+    public Map<Integer, NetworkQueue.HostStats> getNetworkHostStats() {
+        return mNetworkQueue.getHostStats();
+    }
+
+    /**
+     * Returns the moving average of the time requests waited for a network dispatcher since
+     * the queue was started, in milliseconds.
+     */
+    public long getAverageNetworkQueueWaitMs() {
+        NetworkDispatcherPool pool = mDispatcherPool;
+        return pool != null ? pool.getAverageQueueWaitMillis() : 0;
+    }
+
+    /**
+     * Returns the longest time a request waited for a network dispatcher since the queue was
+     * started, in milliseconds.
+     */
+    public long getMaxNetworkQueueWaitMs() {
+        NetworkDispatcherPool pool = mDispatcherPool;
+        return pool != null ? pool.getMaxQueueWaitMillis() : 0;
+    }
+
     /**
      * Gets a sequence number.
      */
@@ -197,6 +365,52 @@ public class RequestQueue {
         return mCache;
     }
 
+    /**
+     * Returns the cache lookups made for each request class since the queue was created or
+     * {@link #resetCacheStats()} was last called. Only the lookup figures are filled in.
+     */
+    public Map<Class<?>, CacheStats> getCacheStatsByType() {
+        Map<Class<?>, CacheStats> stats = new HashMap<Class<?>, CacheStats>();
+        for (Map.Entry<Class<?>, CacheStats.Counter> entry : mCacheStatsByType.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * Returns the share of cache lookups for requests of the given class which found a
+     * servable entry, or 0 if there was none.
+     */
+    public double getCacheHitRatio(Class<?> requestType) {
+        CacheStats.Counter counter = mCacheStatsByType.get(requestType);
+        return counter != null ? counter.snapshot().getHitRatio() : 0;
+    }
+
+    /**
+     * Sets the figures reported by {@link #getCacheStatsByType()} back to zero.
+     */
+    public void resetCacheStats() {
+        mCacheStatsByType.clear();
+    }
+
+    /**
+     * Called from {@link CacheDispatcher} after looking the given request up in the cache.
+     *
+     * @param entry The entry found, or null on a miss.
+     */
+    void recordCacheLookup(Request<?> request, Cache.Entry entry, long elapsedNanos) {
+        final Class<?> type = request.getClass();
+        CacheStats.Counter counter = mCacheStatsByType.get(type);
+        if (counter == null) {
+            CacheStats.Counter created = new CacheStats.Counter();
+            counter = mCacheStatsByType.putIfAbsent(type, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.recordLookup(entry, elapsedNanos);
+    }
+
     /**
      * A simple predicate or filter interface for Requests, for use by
      * {@link RequestQueue#cancelAll(RequestQueue.RequestFilter)}.
@@ -211,11 +425,9 @@ public class RequestQueue {
      * @param filter The filtering function to use
      */
     public void cancelAll(RequestFilter filter) {
-        synchronized (mCurrentRequests) {
-            for (Request<?> request : mCurrentRequests) {
-                if (filter.apply(request)) {
-                    request.cancel();
-                }
+        for (Request<?> request : mCurrentRequests) {
+            if (filter.apply(request)) {
+                request.cancel();
             }
         }
     }
@@ -223,17 +435,38 @@ public class RequestQueue {
     /**
      * Cancels all requests in this queue with the given tag. Tag must be non-null
      * and equality is by identity.
+     * <p/>
+     * Takes time proportional to the number of matching requests. Those still waiting in the
+     * cache or network queue are left there, as taking them out means a scan of the queue;
+     * a dispatcher drops them when it takes them, and the network queue hands canceled
+     * requests out first.
      */
     public void cancelAll(final Object tag) {
         if (tag == null) {
             throw new IllegalArgumentException("Cannot cancelAll with a null tag");
         }
-        cancelAll(new RequestFilter() {
-            @Override
-            public boolean apply(Request<?> request) {
-                return request.getTag() == tag;
-            }
-        });
+        TaggedRequests tagged = mTaggedRequests.get(new TagKey(tag));
+        if (tagged == null) {
+            return;
+        }
+        for (Request<?> request : tagged.requests) {
+            request.cancel();
+        }
+    }
+
+    /**
+     * Changes the priority of a request of this queue, moving it if it waits in the cache or
+     * network queue. See {@link Request#setPriority(Request.Priority)}.
+     */
+    void setPriority(Request<?> request, Request.Priority priority) {
+        // A request must not change priority inside mCacheQueue, whose heap would be left out
+        // of order; take it out first. The network queue does the same under its own lock.
+        boolean inCacheQueue = mCacheQueue.remove(request);
+        mNetworkQueue.setPriority(request, priority);
+        // If it was put in mCacheQueue meanwhile, it may have been placed by the old priority.
+        if (inCacheQueue || mCacheQueue.remove(request)) {
+            mCacheQueue.add(request);
+        }
     }
 
     /**
@@ -245,8 +478,9 @@ public class RequestQueue {
     public <T> Request<T> add(Request<T> request) {
         // Tag the request as belonging to this queue and add it to the set of current requests.
         request.setRequestQueue(this);
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.add(request);
+        mCurrentRequests.add(request);
+        if (request.getTag() != null) {
+            indexTag(request);
         }
 
         // Process requests in the order they are added.
@@ -260,26 +494,24 @@ public class RequestQueue {
         }
 
         // Insert request into stage if there's already a request with the same cache key in flight.
-        synchronized (mWaitingRequests) {
-            String cacheKey = request.getCacheKey();
-            if (mWaitingRequests.containsKey(cacheKey)) {
-                // There is already a request in flight. Queue up.
-                Queue<Request<?>> stagedRequests = mWaitingRequests.get(cacheKey);
-                if (stagedRequests == null) {
-                    stagedRequests = new LinkedList<Request<?>>();
+        String cacheKey = request.getCacheKey();
+        while (true) {
+            WaitingList stagedRequests = mWaitingRequests.get(cacheKey);
+            if (stagedRequests == null) {
+                // Insert an empty list for this cacheKey, indicating there is now a request in
+                // flight.
+                if (mWaitingRequests.putIfAbsent(cacheKey, new WaitingList()) == null) {
+                    mCacheQueue.add(request);
+                    return request;
                 }
-                stagedRequests.add(request);
-                mWaitingRequests.put(cacheKey, stagedRequests);
+            } else if (stagedRequests.attach(request)) {
+                // There is already a request in flight. Queue up.
                 if (VolleyLog.DEBUG) {
                     VolleyLog.v("Request for cacheKey=%s is in flight, putting on hold.", cacheKey);
                 }
-            } else {
-                // Insert 'null' queue for this cacheKey, indicating there is now a request in
-                // flight.
-                mWaitingRequests.put(cacheKey, null);
-                mCacheQueue.add(request);
+                return request;
             }
-            return request;
+            // The request in flight finished meanwhile; try again.
         }
     }
 
@@ -292,21 +524,21 @@ public class RequestQueue {
      */
     <T> void finish(Request<T> request) {
         // Remove from the set of requests currently being processed.
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.remove(request);
+        mCurrentRequests.remove(request);
+        if (request.getTag() != null) {
+            unindexTag(request);
         }
 
-        synchronized (mFinishedListeners) {
-            for (RequestFinishedListener<T> listener : mFinishedListeners) {
-                listener.onRequestFinished(request);
-            }
+        for (RequestFinishedListener<T> listener : mFinishedListeners) {
+            listener.onRequestFinished(request);
         }
 
         if (request.shouldCache()) {
-            synchronized (mWaitingRequests) {
-                String cacheKey = request.getCacheKey();
-                Queue<Request<?>> waitingRequests = mWaitingRequests.remove(cacheKey);
-                if (waitingRequests != null) {
+            String cacheKey = request.getCacheKey();
+            WaitingList stagedRequests = mWaitingRequests.remove(cacheKey);
+            if (stagedRequests != null) {
+                List<Request<?>> waitingRequests = stagedRequests.release();
+                if (!waitingRequests.isEmpty()) {
                     if (VolleyLog.DEBUG) {
                         VolleyLog.v("Releasing %d waiting requests for cacheKey=%s.",
                                 waitingRequests.size(), cacheKey);
@@ -320,17 +552,157 @@ public class RequestQueue {
     }
 
     public <T> void addRequestFinishedListener(RequestFinishedListener<T> listener) {
-        synchronized (mFinishedListeners) {
-            mFinishedListeners.add(listener);
-        }
+        mFinishedListeners.add(listener);
     }
 
     /**
      * Remove a RequestFinishedListener. Has no effect if listener was not previously added.
      */
     public <T> void removeRequestFinishedListener(RequestFinishedListener<T> listener) {
-        synchronized (mFinishedListeners) {
-            mFinishedListeners.remove(listener);
+        mFinishedListeners.remove(listener);
+    }
+
+    private void indexTag(Request<?> request) {
+        final TagKey key = new TagKey(request.getTag());
+        while (true) {
+            TaggedRequests tagged = mTaggedRequests.get(key);
+            if (tagged == null) {
+                tagged = new TaggedRequests();
+                TaggedRequests previous = mTaggedRequests.putIfAbsent(key, tagged);
+                if (previous != null) {
+                    tagged = previous;
+                }
+            }
+            if (tagged.attach(request)) {
+                return;
+            }
+            // The last request of the tag finished meanwhile, and took its set away.
+            mTaggedRequests.remove(key, tagged);
+        }
+    }
+
+    private void unindexTag(Request<?> request) {
+        final TagKey key = new TagKey(request.getTag());
+        TaggedRequests tagged = mTaggedRequests.get(key);
+        if (tagged != null && tagged.detach(request)) {
+            mTaggedRequests.remove(key, tagged);
+        }
+    }
+
+    /**
+     * Compares tags by identity, as {@link #cancelAll(Object)} does.
+     */
+    private static class TagKey {
+        private final Object mTag;
+
+        TagKey(Object tag) {
+            mTag = tag;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TagKey && ((TagKey) o).mTag == mTag;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mTag);
+        }
+    }
+
+    /**
+     * The requests sharing a tag. The set is dropped once its last request finishes; its count
+     * is then set to -1, so that a request attached concurrently goes to a new set instead.
+     */
+    private static class TaggedRequests {
+        final Set<Request<?>> requests =
+                Collections.newSetFromMap(new ConcurrentHashMap<Request<?>, Boolean>());
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        /**
+         * @return false if the set has been dropped.
+         */
+        boolean attach(Request<?> request) {
+            while (true) {
+                final int count = mCount.get();
+                if (count < 0) {
+                    return false;
+                }
+                if (mCount.compareAndSet(count, count + 1)) {
+                    requests.add(request);
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return true if the set is now dropped, and has to be unmapped.
+         */
+        boolean detach(Request<?> request) {
+            if (!requests.remove(request)) {
+                return false;
+            }
+            return mCount.decrementAndGet() == 0 && mCount.compareAndSet(0, -1);
+        }
+    }
+
+    /**
+     * Requests waiting for a duplicate in flight, as a lock-free stack which can be released
+     * only once: a request attached concurrently with the release either makes it into the
+     * released list or is refused, and has to be added again.
+     */
+    private static class WaitingList {
+        /**
+         * Head of the stack, or {@link #RELEASED} once released.
+         */
+        private final AtomicReference<Node> mHead = new AtomicReference<Node>();
+
+        private static final Node RELEASED = new Node(null, null);
+
+        /**
+         * Adds a request to the list.
+         *
+         * @return false if the list has been released already.
+         */
+        boolean attach(Request<?> request) {
+            while (true) {
+                final Node head = mHead.get();
+                if (head == RELEASED) {
+                    return false;
+                }
+                if (mHead.compareAndSet(head, new Node(request, head))) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Releases the list, so that no request can be attached anymore.
+         *
+         * @return The requests attached, in the order they were.
+         */
+        List<Request<?>> release() {
+            Node node = mHead.getAndSet(RELEASED);
+            if (node == RELEASED) {
+                return Collections.emptyList();
+            }
+            List<Request<?>> requests = new ArrayList<Request<?>>();
+            for (; node != null; node = node.next) {
+                requests.add(node.request);
+            }
+            Collections.reverse(requests);
+            return requests;
+        }
+    }
+
+    private static class Node {
+        final Request<?> request;
+        final Node next;
+
+        Node(Request<?> request, Node next) {
+            this.request = request;
+            this.next = next;
         }
     }
 }
@@ -2,6 +2,7 @@ package com.zhi.volley.image;
 
 import com.zhi.common.util.Objects;
 import com.zhi.common.util.Utils;
+import com.zhi.volley.Cache;
 import com.zhi.volley.R;
 import com.zhi.volley.VolleyError;
 import com.zhi.volley.image.ImageLoader.ImageContainer;
@@ -416,8 +417,9 @@ public class CacheImageView extends ImageView implements ImageDecoder.DecodeList
         }
 
         final String cacheKey = String.valueOf(mData);
-        final File file = Image.getInstance().getImageCache().getExtraFileForKey(cacheKey);
-        if (file != null) {
+        final Cache.Entry entry = Image.getInstance().getImageCache().get(cacheKey);
+        if (entry != null && entry.fileBody != null) {
+            final File file = entry.fileBody.getFile();
             if (mRequest != null) {
                 if (mRequest.isDecoding(file.getAbsolutePath())) {
                     return true;
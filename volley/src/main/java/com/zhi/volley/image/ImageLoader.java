@@ -359,6 +359,11 @@ public final class ImageLoader {
          */
         private CacheDrawable mDrawable;
 
+        /**
+         * The priority asked for the request, or null to leave it as is.
+         */
+        private Request.Priority mPriority;
+
         /**
          * Constructs a ImageContainer object.
          *
@@ -401,6 +406,38 @@ public final class ImageLoader {
             }
         }
 
+        /**
+         * Sets the priority this container wants for its in-flight request, e.g. as its view
+         * scrolls in or out of sight. A request still waiting in the queue moves at once. When
+         * several containers share a request, it runs at the highest priority they ask for.
+         *
+         * @param priority The priority wanted, or null to go back to the default one.
+         */
+        public void setPriority(Request.Priority priority) {
+            throwIfNotOnMainThread();
+            mPriority = priority;
+            BatchedImageRequest request = mInFlightRequests.get(mCacheKey);
+            if (request != null) {
+                request.updatePriority();
+            }
+        }
+
+        /**
+         * Asks for the in-flight request to run at {@link Request.Priority#HIGH}, e.g. once the
+         * image has become visible.
+         */
+        public void boost() {
+            setPriority(Request.Priority.HIGH);
+        }
+
+        /**
+         * Asks for the in-flight request to run at {@link Request.Priority#LOW}, e.g. once the
+         * image has scrolled out of sight.
+         */
+        public void demote() {
+            setPriority(Request.Priority.LOW);
+        }
+
         /**
          * Returns the request Data for this container.
          */
@@ -436,6 +473,11 @@ public final class ImageLoader {
          */
         final Request<?> request;
 
+        /**
+         * The priority of the request before any container asked for another one
+         */
+        final Request.Priority defaultPriority;
+
         /**
          * The result of the request being tracked by this item
          */
@@ -459,6 +501,7 @@ public final class ImageLoader {
          */
         BatchedImageRequest(Request<?> request, ImageContainer container) {
             this.request = request;
+            this.defaultPriority = request.getPriority();
             containers.add(container);
         }
 
@@ -482,9 +525,30 @@ public final class ImageLoader {
                 request.cancel();
                 return true;
             }
+            updatePriority();
             return false;
         }
 
+        /**
+         * Moves the request to the highest priority asked by its containers, or back to its
+         * default one if none asks.
+         */
+        void updatePriority() {
+            Request.Priority priority = null;
+            for (ImageContainer container : containers) {
+                if (container.mPriority != null && (priority == null
+                        || container.mPriority.ordinal() > priority.ordinal())) {
+                    priority = container.mPriority;
+                }
+            }
+            if (priority == null) {
+                priority = defaultPriority;
+            }
+            if (request.getPriority() != priority) {
+                request.setPriority(priority);
+            }
+        }
+
     }
 
     private static void throwIfNotOnMainThread() {
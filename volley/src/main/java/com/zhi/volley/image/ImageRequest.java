@@ -114,6 +114,7 @@ public class ImageRequest extends Request<CacheDrawable> {
         setRetryPolicy(new DefaultRetryPolicy(IMAGE_TIMEOUT_MS, IMAGE_MAX_RETRIES, IMAGE_BACKOFF_MULT));
         setToNetwork(type == REQUEST_NETWORK_IMAGE);
         setInMemory(false);
+        setPriority(Priority.LOW);
 
         mType = type;
         mData = data;
@@ -123,11 +124,6 @@ public class ImageRequest extends Request<CacheDrawable> {
         mMaxHeight = maxHeight;
     }
 
-    @Override
-    public Priority getPriority() {
-        return Priority.LOW;
-    }
-
     @Override
     protected Response<CacheDrawable> parseNetworkResponse(NetworkResponse response) {
         // Serialize all decode on a global lock to reduce concurrent heap usage.
@@ -143,7 +139,9 @@ public class ImageRequest extends Request<CacheDrawable> {
                                 mDecodeConfig, mMaxWidth, mMaxHeight, imageCache);
                         format = Image.decodeFormat(response.data);
                     } else {
-                        final File file = imageCache.getExtraFileForKey(getCacheKey());
+                        final File file = response.fileBody != null
+                                ? response.fileBody.getFile()
+                                : imageCache.getExtraFileForKey(getCacheKey());
                         if (file != null && file.exists()) {
                             bitmap = Image.decode(file.getAbsolutePath(),
                                     mDecodeConfig, mMaxWidth, mMaxHeight, imageCache);
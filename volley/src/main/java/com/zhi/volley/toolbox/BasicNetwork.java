@@ -91,6 +91,7 @@ public class BasicNetwork implements Network {
         while (true) {
             HttpResponse httpResponse = null;
             byte[] responseContents = null;
+            Cache.FileBody fileBody = null;
             Map<String, String> responseHeaders = new HashMap<String, String>();
             try {
                 // Gather headers.
@@ -103,9 +104,10 @@ public class BasicNetwork implements Network {
                 responseHeaders = convertHeaders(httpResponse.getAllHeaders());
                 // Handle cache validation.
                 if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+                    Cache.Entry entry = request.getCacheEntry();
                     return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED,
-                            request.getCacheEntry() == null ? null : request.getCacheEntry().data,
-                            responseHeaders, true);
+                            entry == null ? null : entry.data, responseHeaders, true, 0,
+                            entry == null ? null : entry.fileBody);
                 }
 
                 // Some responses such as 204s do not have content.  We must check.
@@ -115,8 +117,15 @@ public class BasicNetwork implements Network {
                     } else {
                         responseContents = new byte[0];
                         // If not cached in memory, the response should be in disk.
-                        File file = mCache.getExtraFileForKey(request.getCacheKey());
-                        entryToDisk(httpResponse.getEntity(), file);
+                        final String key = request.getCacheKey();
+                        File tmp = mCache.createExtraTempFile(key);
+                        try {
+                            entryToDisk(httpResponse.getEntity(), tmp);
+                            fileBody = mCache.commitExtraFile(key, tmp);
+                        } finally {
+                            // Only left if the body could not be read or moved into place.
+                            tmp.delete();
+                        }
                     }
                 } else {
                     // Add 0 byte response as a way of honestly representing a
@@ -131,7 +140,8 @@ public class BasicNetwork implements Network {
                 if (statusCode < 200 || statusCode > 299) {
                     throw new IOException();
                 }
-                return new NetworkResponse(statusCode, responseContents, responseHeaders, false);
+                return new NetworkResponse(statusCode, responseContents, responseHeaders, false,
+                        0, fileBody);
             } catch (SocketTimeoutException e) {
                 attemptRetryOnException("socket", request, new TimeoutError());
             } catch (ConnectTimeoutException e) {
@@ -0,0 +1,246 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhi.volley.toolbox;
+
+import com.zhi.volley.VolleyLog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed bodies of a {@link DiskBasedCache}.
+ * <p/>
+ * Each body is stored once, in a file named by its SHA-256 digest, however many entries
+ * share it. Blobs are reference-counted by the entries pointing to them and deleted with the
+ * last one. The counts are not persisted: they are rebuilt from the entries when the cache
+ * loads, and blobs no entry points to are then deleted.
+ * <p/>
+ * A blob is charged to one namespace: that of the first entry referencing it. When the last
+ * such entry goes while entries of other namespaces still reference the blob, the charge moves
+ * to one of those. So namespace sizes add up to the cache size, and each blob counts against a
+ * namespace which uses it.
+ */
+class CacheBlobStore {
+    /**
+     * Name of the blob directory inside the cache root directory.
+     */
+    static final String BLOB_DIRECTORY = "blobs";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+
+    /**
+     * Referenced blobs by digest. Guarded by this.
+     */
+    private final Map<String, Blob> mBlobs = new HashMap<String, Blob>();
+
+    CacheBlobStore(File rootDirectory) {
+        mDirectory = new File(rootDirectory, BLOB_DIRECTORY);
+    }
+
+    /**
+     * Returns the hex SHA-256 digest of the given body.
+     */
+    static String digest(byte[] body) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return DiskBasedCache.toHex(digest.digest(body));
+    }
+
+    /**
+     * Returns the file holding the blob with the given digest.
+     */
+    File getFile(String digest) {
+        return new File(mDirectory, digest);
+    }
+
+    /**
+     * Stores a body unless a blob with its digest exists already, and takes a reference to
+     * it. The body is written outside of the lock, so concurrent puts of different bodies do
+     * not wait for each other.
+     *
+     * @return The number of bytes the cache grew by.
+     */
+    long store(String digest, byte[] body) throws IOException {
+        synchronized (this) {
+            Blob blob = mBlobs.get(digest);
+            if (blob != null) {
+                blob.references++;
+                return 0;
+            }
+        }
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory.getAbsolutePath());
+        }
+        File tmp = new File(mDirectory, digest + TMP_SUFFIX + Thread.currentThread().getId());
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            fos.write(body);
+        } finally {
+            fos.close();
+        }
+
+        synchronized (this) {
+            Blob blob = mBlobs.get(digest);
+            if (blob != null) {
+                // Stored by another thread meanwhile.
+                tmp.delete();
+                blob.references++;
+                return 0;
+            }
+            // Renaming, rather than writing in place, keeps mappings of an orphan intact.
+            if (!tmp.renameTo(getFile(digest))) {
+                tmp.delete();
+                throw new IOException("Could not rename " + tmp.getAbsolutePath());
+            }
+            mBlobs.put(digest, new Blob(body.length));
+            return body.length;
+        }
+    }
+
+    /**
+     * Takes a reference to a blob for an entry of the given namespace being indexed. The blob
+     * may be on disk already without being referenced, when the entry is loaded.
+     *
+     * @return The number of bytes the cache grew by.
+     */
+    synchronized long retain(String digest, long length, CacheNamespace namespace) {
+        Blob blob = mBlobs.get(digest);
+        long grown = 0;
+        if (blob != null) {
+            blob.references++;
+        } else {
+            blob = new Blob(length);
+            mBlobs.put(digest, blob);
+            grown = length;
+        }
+        Integer owned = blob.owners.get(namespace);
+        blob.owners.put(namespace, owned != null ? owned + 1 : 1);
+        if (blob.chargedTo == null) {
+            blob.chargedTo = namespace;
+            namespace.charge(blob.length);
+        }
+        return grown;
+    }
+
+    /**
+     * Drops the reference of an entry of the given namespace to a blob, deleting it with the
+     * last one.
+     *
+     * @return The number of bytes the cache shrank by.
+     */
+    synchronized long release(String digest, CacheNamespace namespace) {
+        Blob blob = mBlobs.get(digest);
+        if (blob == null) {
+            return 0;
+        }
+        Integer owned = blob.owners.get(namespace);
+        if (owned != null && owned > 1) {
+            blob.owners.put(namespace, owned - 1);
+        } else if (owned != null) {
+            blob.owners.remove(namespace);
+            if (blob.chargedTo == namespace) {
+                // Hand the charge over to another namespace still using the blob, if any.
+                namespace.charge(-blob.length);
+                blob.chargedTo = blob.owners.isEmpty()
+                        ? null : blob.owners.keySet().iterator().next();
+                if (blob.chargedTo != null) {
+                    blob.chargedTo.charge(blob.length);
+                }
+            }
+        }
+        return release(digest);
+    }
+
+    /**
+     * Drops a reference taken by {@link #store(String, byte[])}, which pins a blob until its
+     * entry is indexed, deleting it with the last one.
+     *
+     * @return The number of bytes the cache shrank by.
+     */
+    synchronized long release(String digest) {
+        Blob blob = mBlobs.get(digest);
+        if (blob == null || --blob.references > 0) {
+            return 0;
+        }
+        mBlobs.remove(digest);
+        File file = getFile(digest);
+        if (!file.delete()) {
+            VolleyLog.d("Could not delete blob %s", file.getAbsolutePath());
+        }
+        return blob.length;
+    }
+
+    /**
+     * Forgets all blobs, as the cache has been cleared along with their directory.
+     */
+    synchronized void clear() {
+        mBlobs.clear();
+    }
+
+    /**
+     * Deletes the blobs no entry points to, left behind by a process which died between
+     * writing a blob and its entry, or between dropping the last entry and the blob.
+     *
+     * @param startTime Wall time the cache started loading at; newer files may belong to
+     *                  puts in progress and are kept.
+     */
+    void deleteOrphans(long startTime) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            synchronized (this) {
+                if (!mBlobs.containsKey(file.getName()) && file.lastModified() < startTime) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static class Blob {
+        final long length;
+        int references = 1;
+
+        /**
+         * Number of references by namespace; {@link #store(String, byte[])} pins are not
+         * counted here.
+         */
+        final Map<CacheNamespace, Integer> owners = new HashMap<CacheNamespace, Integer>(2);
+
+        /**
+         * The namespace whose size the blob counts against, or null if not referenced.
+         */
+        CacheNamespace chargedTo;
+
+        Blob(long length) {
+            this.length = length;
+        }
+    }
+}
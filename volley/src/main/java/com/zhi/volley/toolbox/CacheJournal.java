@@ -0,0 +1,487 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhi.volley.toolbox;
+
+import com.zhi.volley.VolleyLog;
+import com.zhi.volley.toolbox.DiskBasedCache.CacheHeader;
+import com.zhi.volley.toolbox.DiskBasedCache.CountingInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only index of a {@link DiskBasedCache}.
+ * <p/>
+ * Every put and remove is appended as a small record, so that the whole index can be
+ * restored with one sequential read instead of opening every cache file. The journal is
+ * rewritten from the live entries once redundant records outnumber them.
+ * <p/>
+ * A put is bracketed by a dirty record, appended before its files change, and the put record
+ * itself once they are in place. A key whose last record is a dirty one was being written when
+ * the process died, and its files cannot be trusted.
+ */
+class CacheJournal {
+    /**
+     * Name of the journal file inside the cache root directory.
+     */
+    static final String JOURNAL_FILE = "journal";
+
+    /**
+     * Name of the temporary file used while compacting the journal.
+     */
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+
+    /**
+     * Magic number for current version of journal file format.
+     */
+    private static final int JOURNAL_MAGIC = 0x20150903;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_DIRTY = 3;
+
+    /**
+     * Number of redundant records tolerated before the journal gets compacted.
+     */
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    private final File mJournalFile;
+    private final File mJournalFileTmp;
+
+    /**
+     * Open stream records are appended to, or null if not opened yet.
+     */
+    private OutputStream mWriter;
+
+    /**
+     * File stream under {@link #mWriter}, to sync it.
+     */
+    private FileOutputStream mWriterStream;
+
+    /**
+     * Number of records which no longer describe a live entry. Written under the lock, read
+     * without it by {@link #needsCompaction(int)}.
+     */
+    private volatile int mRedundantOps;
+
+    /**
+     * Set once a write failed; records are dropped until the journal is rewritten.
+     */
+    private boolean mBroken;
+
+    /**
+     * Records appended while a rewrite is in progress, or null if there is none. Written under
+     * the lock, read without it by {@link #needsCompaction(int)}.
+     */
+    private volatile ByteArrayOutputStream mPending;
+
+    /**
+     * Incremented by {@link #reset()}, so that a rewrite started before it gets abandoned.
+     */
+    private int mGeneration;
+
+    /**
+     * Set once the end of the journal file is known to be a whole record, so that appending
+     * to it is safe.
+     */
+    private boolean mTailChecked;
+
+    CacheJournal(File directory) {
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mJournalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+    }
+
+    /**
+     * Returns true if the given file is one of the journal files rather than a cache entry.
+     */
+    static boolean isJournalFile(File file) {
+        final String name = file.getName();
+        return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TMP.equals(name);
+    }
+
+    /**
+     * Replays the journal into the given map. This does not hold the journal lock, so that
+     * records can still be appended while the cache warms up; a record caught half-written
+     * is treated as the end of the journal. A record torn by a previous process is cut off
+     * before anything gets appended after it.
+     *
+     * @param entries   The map to fill, in journal order.
+     * @param dirtyKeys The set to fill with the keys whose last record is a dirty one; they
+     *                  are left out of the entries.
+     * @return false if the journal is missing or corrupt, and the cache directory has to be
+     * scanned instead.
+     */
+    boolean read(Map<String, CacheHeader> entries, Set<String> dirtyKeys) {
+        if (!mJournalFile.exists()) {
+            return false;
+        }
+        try {
+            final Replay replay = replay(entries, dirtyKeys);
+            synchronized (this) {
+                if (replay.truncated) {
+                    VolleyLog.d("Truncated cache journal, %d records recovered", replay.records);
+                }
+                if (!mTailChecked) {
+                    // Nothing has been appended yet, so the torn record still ends the file.
+                    if (replay.truncated) {
+                        truncate(replay.end);
+                    }
+                    mTailChecked = true;
+                }
+                mRedundantOps += replay.records - entries.size();
+            }
+            return true;
+        } catch (IOException e) {
+            VolleyLog.d("Corrupt cache journal %s: %s", mJournalFile.getAbsolutePath(), e);
+            entries.clear();
+            dirtyKeys.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Reads the records of the journal into the given collections.
+     *
+     * @throws IOException If the journal is corrupt; a truncated last record is not an error.
+     */
+    private Replay replay(Map<String, CacheHeader> entries, Set<String> dirtyKeys)
+            throws IOException {
+        final Replay replay = new Replay();
+        CountingInputStream is = null;
+        try {
+            is = new CountingInputStream(new BufferedInputStream(
+                    new FileInputStream(mJournalFile), IO_BUFFER_SIZE));
+            if (DiskBasedCache.readInt(is) != JOURNAL_MAGIC) {
+                throw new IOException("Bad journal magic");
+            }
+            replay.end = is.bytesRead;
+            while (true) {
+                final int op = is.read();
+                if (op == -1) {
+                    break;
+                }
+                if (op == OP_PUT) {
+                    CacheHeader entry = CacheHeader.readHeader(is);
+                    entry.size = DiskBasedCache.readLong(is);
+                    entry.bodyOffset = DiskBasedCache.readLong(is);
+                    entry.version = DiskBasedCache.readInt(is);
+                    entries.put(entry.key, entry);
+                    dirtyKeys.remove(entry.key);
+                } else if (op == OP_REMOVE) {
+                    final String key = DiskBasedCache.readString(is);
+                    entries.remove(key);
+                    dirtyKeys.remove(key);
+                } else if (op == OP_DIRTY) {
+                    final String key = DiskBasedCache.readString(is);
+                    entries.remove(key);
+                    dirtyKeys.add(key);
+                } else {
+                    throw new IOException("Bad journal op " + op);
+                }
+                replay.records++;
+                replay.end = is.bytesRead;
+            }
+        } catch (EOFException e) {
+            if (replay.end == 0) {
+                throw e;
+            }
+            // The process died while appending the last record; everything before it is fine.
+            replay.truncated = true;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return replay;
+    }
+
+    /**
+     * Cuts the journal file at the given length.
+     */
+    private void truncate(long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mJournalFile, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Appends a record for an added or replaced entry.
+     */
+    synchronized void put(CacheHeader entry, boolean replaced) {
+        try {
+            if (mPending != null) {
+                writePut(mPending, entry);
+            }
+            if (mBroken) {
+                return;
+            }
+            OutputStream os = getWriter();
+            writePut(os, entry);
+            os.flush();
+            if (replaced) {
+                mRedundantOps++;
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Appends a record telling that the files of the given key are about to change. The put
+     * record of the key, or a remove one, has to follow once they are in place again.
+     */
+    synchronized void dirty(String key) {
+        try {
+            if (mPending != null) {
+                writeKeyRecord(mPending, OP_DIRTY, key);
+            }
+            if (mBroken) {
+                return;
+            }
+            OutputStream os = getWriter();
+            writeKeyRecord(os, OP_DIRTY, key);
+            os.flush();
+            // The record following it makes it redundant.
+            mRedundantOps++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Appends a record for a removed entry.
+     */
+    synchronized void remove(String key) {
+        try {
+            if (mPending != null) {
+                writeKeyRecord(mPending, OP_REMOVE, key);
+            }
+            if (mBroken) {
+                return;
+            }
+            OutputStream os = getWriter();
+            writeKeyRecord(os, OP_REMOVE, key);
+            os.flush();
+            // Both the remove record and the put record it cancels are now redundant.
+            mRedundantOps += 2;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Forces the records appended so far to the disk.
+     */
+    synchronized void sync() {
+        if (mWriterStream == null || mBroken) {
+            return;
+        }
+        try {
+            mWriter.flush();
+            mWriterStream.getFD().sync();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Returns true if the journal holds enough redundant records to be worth compacting.
+     *
+     * Does not take the lock, as it is checked after every cache write; a stale answer only
+     * delays compaction, and {@link #beginRewrite()} keeps two rewrites from overlapping.
+     *
+     * @param liveEntries The number of entries currently in the cache.
+     */
+    boolean needsCompaction(int liveEntries) {
+        return mPending == null && mRedundantOps >= COMPACT_THRESHOLD
+                && mRedundantOps >= liveEntries;
+    }
+
+    /**
+     * Starts replacing the journal. The caller then takes a snapshot of the live entries and
+     * passes it to {@link #rewrite(Collection, int)}; records appended in between are kept
+     * aside and replayed after the snapshot, so the cache does not have to be locked as a whole.
+     *
+     * @return A token to pass to {@link #rewrite(Collection, int)}, or -1 if a rewrite is
+     * already in progress.
+     */
+    synchronized int beginRewrite() {
+        if (mPending != null) {
+            return -1;
+        }
+        mPending = new ByteArrayOutputStream();
+        return mGeneration;
+    }
+
+    /**
+     * Replaces the journal with one holding a single record per live entry, followed by the
+     * records appended since {@link #beginRewrite()}. Does nothing if the journal has been
+     * reset in between, as the snapshot may then hold entries which no longer exist.
+     */
+    synchronized void rewrite(Collection<CacheHeader> entries, int generation) {
+        final ByteArrayOutputStream pending = mPending;
+        mPending = null;
+        if (pending == null || generation != mGeneration) {
+            return;
+        }
+        closeWriter();
+        OutputStream os = null;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(mJournalFileTmp), IO_BUFFER_SIZE);
+            DiskBasedCache.writeInt(os, JOURNAL_MAGIC);
+            for (CacheHeader entry : entries) {
+                writePut(os, entry);
+            }
+            pending.writeTo(os);
+            os.close();
+            os = null;
+            if (!mJournalFileTmp.renameTo(mJournalFile)) {
+                throw new IOException("Could not rename " + mJournalFileTmp.getAbsolutePath());
+            }
+            mRedundantOps = 0;
+            mBroken = false;
+            mTailChecked = true;
+        } catch (IOException e) {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException ignored) {
+                }
+            }
+            mJournalFileTmp.delete();
+            fail(e);
+        }
+    }
+
+    /**
+     * Empties the journal, as the cache has been cleared. A rewrite in progress is abandoned.
+     */
+    synchronized void reset() {
+        delete();
+        mBroken = false;
+        mPending = null;
+        mGeneration++;
+    }
+
+    private static void writePut(OutputStream os, CacheHeader entry) throws IOException {
+        os.write(OP_PUT);
+        entry.writeFields(os);
+        DiskBasedCache.writeLong(os, entry.size);
+        DiskBasedCache.writeLong(os, entry.bodyOffset);
+        DiskBasedCache.writeInt(os, entry.version);
+    }
+
+    private static void writeKeyRecord(OutputStream os, int op, String key) throws IOException {
+        os.write(op);
+        DiskBasedCache.writeString(os, key);
+    }
+
+    /**
+     * Closes and deletes the journal; the next start-up will rebuild it by scanning.
+     */
+    private void delete() {
+        closeWriter();
+        mJournalFile.delete();
+        mJournalFileTmp.delete();
+        mRedundantOps = 0;
+        mTailChecked = true;
+    }
+
+    private OutputStream getWriter() throws IOException {
+        if (mWriter == null) {
+            final boolean exists = mJournalFile.exists();
+            if (exists && !mTailChecked) {
+                // Appending ahead of read(): look for a torn record first, so that the new
+                // ones do not end up glued to it. A corrupt journal makes this throw.
+                final Replay replay = replay(new HashMap<String, CacheHeader>(),
+                        new HashSet<String>());
+                if (replay.truncated) {
+                    truncate(replay.end);
+                }
+            }
+            mTailChecked = true;
+            mWriterStream = new FileOutputStream(mJournalFile, true);
+            mWriter = new BufferedOutputStream(mWriterStream, IO_BUFFER_SIZE);
+            if (!exists) {
+                DiskBasedCache.writeInt(mWriter, JOURNAL_MAGIC);
+            }
+        }
+        return mWriter;
+    }
+
+    /**
+     * Outcome of {@link #replay(Map, Set)}.
+     */
+    private static class Replay {
+        /**
+         * Number of whole records read.
+         */
+        int records;
+
+        /**
+         * Offset just past the last whole record.
+         */
+        long end;
+
+        /**
+         * Whether a record was cut short after it.
+         */
+        boolean truncated;
+    }
+
+    private void closeWriter() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException ignored) {
+            }
+            mWriter = null;
+            mWriterStream = null;
+        }
+    }
+
+    /**
+     * A journal that misses records would silently drop entries on the next start-up,
+     * so throw it away and let the scan rebuild it instead.
+     */
+    private void fail(IOException e) {
+        VolleyLog.d("Cache journal write failed, dropping it: %s", e.toString());
+        delete();
+        mBroken = true;
+    }
+}
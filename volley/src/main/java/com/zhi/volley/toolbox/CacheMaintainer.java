@@ -0,0 +1,119 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhi.volley.toolbox;
+
+import com.zhi.volley.VolleyLog;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+/**
+ * Maintenance thread of a {@link DiskBasedCache}.
+ * <p/>
+ * Prunes the cache down to its low watermark as soon as a put takes it past the high one,
+ * so that puts rarely have to prune themselves, and periodically sweeps out entries which
+ * have been fully expired for longer than a grace period. The thread runs until
+ * {@link #quit()}.
+ */
+class CacheMaintainer extends Thread {
+    /**
+     * The cache to maintain.
+     */
+    private final DiskBasedCache mCache;
+
+    /**
+     * Time between two sweeps for expired entries.
+     */
+    private final long mSweepIntervalMillis;
+
+    /**
+     * How long entries are kept past their TTL, so they can still be revalidated.
+     */
+    private final long mExpiredGraceMillis;
+
+    /**
+     * Whether a put has taken the cache past its high watermark. Guarded by this.
+     */
+    private boolean mPruneRequested;
+
+    /**
+     * Set by {@link #quit()}. Guarded by this.
+     */
+    private boolean mQuit;
+
+    CacheMaintainer(DiskBasedCache cache, long sweepIntervalMillis, long expiredGraceMillis) {
+        super("volley-cache-maintainer");
+        mCache = cache;
+        mSweepIntervalMillis = sweepIntervalMillis;
+        mExpiredGraceMillis = expiredGraceMillis;
+        setDaemon(true);
+    }
+
+    /**
+     * Wakes the thread up to prune, without waiting for it.
+     */
+    synchronized void requestPrune() {
+        if (!mPruneRequested) {
+            mPruneRequested = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Makes the thread exit. Not interrupted, as it may be in the middle of file operations;
+     * a maintenance round in progress is finished first.
+     */
+    synchronized void quit() {
+        mQuit = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        long nextSweep = SystemClock.elapsedRealtime() + mSweepIntervalMillis;
+        while (true) {
+            final boolean prune;
+            try {
+                synchronized (this) {
+                    long now = SystemClock.elapsedRealtime();
+                    while (!mQuit && !mPruneRequested && now < nextSweep) {
+                        wait(nextSweep - now);
+                        now = SystemClock.elapsedRealtime();
+                    }
+                    if (mQuit) {
+                        return;
+                    }
+                    prune = mPruneRequested;
+                    mPruneRequested = false;
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            final boolean sweep = SystemClock.elapsedRealtime() >= nextSweep;
+            if (sweep) {
+                nextSweep = SystemClock.elapsedRealtime() + mSweepIntervalMillis;
+            }
+            try {
+                mCache.runMaintenance(prune, sweep ? mExpiredGraceMillis : -1);
+            } catch (Exception e) {
+                VolleyLog.e(e, "Unhandled exception %s", e.toString());
+            }
+        }
+    }
+}
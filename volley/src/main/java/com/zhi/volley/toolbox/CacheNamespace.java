@@ -0,0 +1,213 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhi.volley.toolbox;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A share of the byte budget of a {@link DiskBasedCache}, such as the one of API responses
+ * or of images.
+ * <p/>
+ * A namespace may grow up to its maximum, and keeps at least its minimum when the cache is
+ * full: the cache evicts from the namespaces furthest over their minimum first, each by its
+ * own {@link EvictionPolicy}, so a burst in one namespace cannot flush another.
+ * <p/>
+ * Reads are by far the most frequent event, and the policy locks itself for each one. So
+ * they are buffered here without a lock and handed to the policy in batches, by whichever
+ * thread finds the policy free; under load, reads which find the buffer full are dropped, as
+ * a policy only needs a sample of them to rank entries.
+ *
+ * @see DiskBasedCache#setNamespaces(DiskBasedCache.NamespaceClassifier, CacheNamespace...)
+ */
+public class CacheNamespace {
+    /**
+     * Number of buffered reads from which they are handed to the policy.
+     */
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = 32;
+
+    /**
+     * Number of buffered reads past which further ones are dropped.
+     */
+    private static final int READ_BUFFER_MAX_SIZE = 128;
+
+    private final String mName;
+    private final long mMinBytes;
+    private final long mMaxBytes;
+
+    private volatile EvictionPolicy mEvictionPolicy;
+
+    /**
+     * Space used by the entries of this namespace in bytes.
+     */
+    private final AtomicLong mSize = new AtomicLong();
+
+    /**
+     * Keys read and not yet reported to the policy.
+     */
+    private final ConcurrentLinkedQueue<String> mReadBuffer = new ConcurrentLinkedQueue<String>();
+
+    /**
+     * Size of {@link #mReadBuffer}, which it does not keep in constant time itself.
+     */
+    private final AtomicInteger mReadBufferSize = new AtomicInteger();
+
+    /**
+     * Held while draining {@link #mReadBuffer}, so that the reports keep their order.
+     */
+    private final ReentrantLock mDrainLock = new ReentrantLock();
+
+    /**
+     * @param name     The name the classifier of the cache refers to this namespace by.
+     * @param minBytes The space this namespace keeps however full the cache is.
+     * @param maxBytes The space this namespace may use at most.
+     */
+    public CacheNamespace(String name, long minBytes, long maxBytes) {
+        if (name == null || name.length() == 0) {
+            throw new IllegalArgumentException("name must not be empty");
+        }
+        if (minBytes < 0 || maxBytes < minBytes) {
+            throw new IllegalArgumentException("Invalid bounds " + minBytes + ".." + maxBytes);
+        }
+        mName = name;
+        mMinBytes = minBytes;
+        mMaxBytes = maxBytes;
+        setEvictionPolicy(new LruEvictionPolicy());
+    }
+
+    /**
+     * Sets the policy deciding which entries of this namespace to evict, instead of the
+     * default {@link LruEvictionPolicy}. Must be called before the namespace is used.
+     *
+     * @return This namespace, for chaining.
+     */
+    public CacheNamespace setEvictionPolicy(EvictionPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        if (mSize.get() > 0) {
+            throw new IllegalStateException("The namespace is already in use");
+        }
+        policy.setMaximumWeight(mMaxBytes);
+        mEvictionPolicy = policy;
+        return this;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public long getMinBytes() {
+        return mMinBytes;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Returns the space used by the entries of this namespace in bytes. A body shared through
+     * content addressing counts against one of the namespaces using it.
+     */
+    public long getSize() {
+        return mSize.get();
+    }
+
+    EvictionPolicy getEvictionPolicy() {
+        return mEvictionPolicy;
+    }
+
+    /**
+     * Records that an entry has been added, or replaced if the key is already in this
+     * namespace.
+     *
+     * @param replacedWeight Size of the replaced entry, or 0 if there was none.
+     */
+    void onInsert(String key, long weight, long replacedWeight) {
+        mSize.addAndGet(weight - replacedWeight);
+        mEvictionPolicy.onInsert(key, weight);
+    }
+
+    /**
+     * Records a read. Only buffered; the policy learns about it with the next batch.
+     */
+    void onAccess(String key) {
+        final int size = mReadBufferSize.get();
+        if (size < READ_BUFFER_MAX_SIZE) {
+            mReadBufferSize.incrementAndGet();
+            mReadBuffer.offer(key);
+        }
+        if (size + 1 >= READ_BUFFER_DRAIN_THRESHOLD && mDrainLock.tryLock()) {
+            try {
+                drainReadBufferLocked();
+            } finally {
+                mDrainLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the key the policy evicts next, taking all buffered reads into account.
+     */
+    String victim() {
+        mDrainLock.lock();
+        try {
+            drainReadBufferLocked();
+        } finally {
+            mDrainLock.unlock();
+        }
+        return mEvictionPolicy.victim();
+    }
+
+    private void drainReadBufferLocked() {
+        String key;
+        while ((key = mReadBuffer.poll()) != null) {
+            mReadBufferSize.decrementAndGet();
+            mEvictionPolicy.onAccess(key);
+        }
+    }
+
+    void onRemove(String key, long weight) {
+        mSize.addAndGet(-weight);
+        mEvictionPolicy.onRemove(key);
+    }
+
+    /**
+     * Adds the size of a shared body charged to this namespace, or subtracts it if negative.
+     * The eviction policy only weighs entries by their own files.
+     */
+    void charge(long bytes) {
+        mSize.addAndGet(bytes);
+    }
+
+    /**
+     * Forgets all entries, as the cache has been cleared.
+     */
+    void clear() {
+        mSize.set(0);
+        mReadBuffer.clear();
+        mReadBufferSize.set(0);
+        mEvictionPolicy.clear();
+    }
+
+    @Override
+    public String toString() {
+        return mName + " " + mSize.get() + "/" + mMinBytes + ".." + mMaxBytes;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhi.volley.toolbox;
+
+import com.zhi.volley.Cache.Entry;
+import com.zhi.volley.VolleyLog;
+
+import android.os.Process;
+
+import java.io.File;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-behind thread of a {@link DiskBasedCache}.
+ * <p/>
+ * Puts are queued here and written by this thread in batches, syncing the files of a batch and
+ * then the journal once per batch, so the threads putting do not wait for the disk. A newer put
+ * of a queued key replaces the queued entry instead of being written after it, and queued
+ * entries are served to readers until they are on disk. Once the queued data exceeds the byte budget, putting
+ * blocks until the writer catches up. The thread runs until {@link #quit()}.
+ */
+class CacheWriter extends Thread {
+    /**
+     * The cache to write to.
+     */
+    private final DiskBasedCache mCache;
+
+    /**
+     * Bytes of data which may be queued before puts block.
+     */
+    private final int mMaxPendingBytes;
+
+    /**
+     * Entries waiting to be written, oldest first. Guarded by this.
+     */
+    private final Map<String, Entry> mPending = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Data size of the queued entries. Guarded by this.
+     */
+    private long mPendingBytes;
+
+    /**
+     * Set by {@link #quit()}; the thread exits once the queue is empty. Guarded by this.
+     */
+    private boolean mQuit;
+
+    CacheWriter(DiskBasedCache cache, int maxPendingBytes) {
+        super("volley-cache-writer");
+        mCache = cache;
+        mMaxPendingBytes = maxPendingBytes;
+        setDaemon(true);
+    }
+
+    /**
+     * Queues an entry to be written, replacing the queued one for the same key. Blocks while
+     * the queue is over its byte budget.
+     *
+     * @return false if interrupted while waiting or quitting, in which case nothing was queued.
+     */
+    synchronized boolean enqueue(String key, Entry entry) {
+        final int size = sizeOf(entry);
+        try {
+            while (!mQuit && mPendingBytes > 0 && mPendingBytes + size > mMaxPendingBytes
+                    && !mPending.containsKey(key)) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (mQuit) {
+            return false;
+        }
+        Entry old = mPending.remove(key);
+        if (old != null) {
+            mPendingBytes -= sizeOf(old);
+        }
+        mPending.put(key, entry);
+        mPendingBytes += size;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Returns the queued entry for the given key, or null if there is none.
+     */
+    synchronized Entry get(String key) {
+        return mPending.get(key);
+    }
+
+    /**
+     * Replaces a queued entry, as long as it is still the expected one.
+     *
+     * @return false if the expected entry is no longer queued.
+     */
+    synchronized boolean replace(String key, Entry expected, Entry entry) {
+        if (mPending.get(key) != expected) {
+            return false;
+        }
+        mPending.put(key, entry);
+        mPendingBytes += sizeOf(entry) - sizeOf(expected);
+        return true;
+    }
+
+    /**
+     * Returns true if the given entry is still the one queued for its key, that is it has
+     * been neither replaced nor discarded.
+     */
+    synchronized boolean isPending(String key, Entry entry) {
+        return mPending.get(key) == entry;
+    }
+
+    /**
+     * Drops the queued entry for the given key, if any.
+     */
+    synchronized void discard(String key) {
+        Entry old = mPending.remove(key);
+        if (old != null) {
+            mPendingBytes -= sizeOf(old);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Drops all queued entries.
+     */
+    synchronized void discardAll() {
+        mPending.clear();
+        mPendingBytes = 0;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until every entry queued so far has been written or discarded.
+     */
+    synchronized void flush() throws InterruptedException {
+        while (!mPending.isEmpty()) {
+            wait();
+        }
+    }
+
+    /**
+     * Makes the thread exit once it has written the queued entries. Puts are no longer queued
+     * from then on, and get written right away.
+     */
+    synchronized void quit() {
+        mQuit = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        List<Map.Entry<String, Entry>> batch = new ArrayList<Map.Entry<String, Entry>>();
+        List<File> written = new ArrayList<File>();
+        while (true) {
+            try {
+                synchronized (this) {
+                    while (mPending.isEmpty()) {
+                        if (mQuit) {
+                            return;
+                        }
+                        wait();
+                    }
+                    for (Map.Entry<String, Entry> pending : mPending.entrySet()) {
+                        batch.add(new SimpleImmutableEntry<String, Entry>(pending));
+                    }
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            for (Map.Entry<String, Entry> pending : batch) {
+                try {
+                    mCache.writePending(pending.getKey(), pending.getValue(), written);
+                } catch (Exception e) {
+                    VolleyLog.e(e, "Unhandled exception %s", e.toString());
+                }
+                complete(pending.getKey(), pending.getValue());
+            }
+            // The files first, so that the journal never points at data not on disk yet.
+            DiskBasedCache.syncFiles(written);
+            mCache.syncJournal();
+            batch.clear();
+            written.clear();
+        }
+    }
+
+    /**
+     * Takes a written entry off the queue, unless it has been replaced meanwhile.
+     */
+    private synchronized void complete(String key, Entry entry) {
+        if (mPending.get(key) == entry) {
+            mPending.remove(key);
+            mPendingBytes -= sizeOf(entry);
+            notifyAll();
+        }
+    }
+
+    private static int sizeOf(Entry entry) {
+        return entry.data == null ? 0 : entry.data.length;
+    }
+}
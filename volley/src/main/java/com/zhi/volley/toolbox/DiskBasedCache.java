@@ -16,43 +16,121 @@
 
 package com.zhi.volley.toolbox;
 
+import com.zhi.common.io.ByteArrayPool;
+import com.zhi.common.io.PoolingByteArrayOutputStream;
 import com.zhi.volley.Cache;
+import com.zhi.volley.CacheStats;
 import com.zhi.volley.VolleyLog;
 
+import org.apache.http.protocol.HTTP;
+
+import android.os.Process;
 import android.os.SystemClock;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified
  * directory. The default disk usage size is 5MB, but is configurable.
+ * <p/>
+ * Keys are partitioned across segments, each with its own LRU map, size accounting and lock,
+ * so that writing a large entry only holds up the keys of its own segment. The size budget
+ * applies to all segments together; which entries go when it is exceeded is up to the
+ * {@link EvictionPolicy}, plain LRU unless set otherwise.
  */
 public class DiskBasedCache implements Cache {
 
     /**
-     * Map of the Key, CacheHeader pairs
+     * Segments the keys are partitioned across.
      */
-    private final Map<String, CacheHeader> mEntries =
-            new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+    private final Segment[] mSegments;
 
     /**
      * Total amount of space currently used by the cache in bytes.
      */
-    private long mTotalSize = 0;
+    private final AtomicLong mTotalSize = new AtomicLong();
+
+    /**
+     * Number of entries in all segments.
+     */
+    private final AtomicInteger mEntryCount = new AtomicInteger();
+
+    /**
+     * Source of {@link CacheHeader#accessTime}, to find the least recently used entry
+     * across segments.
+     */
+    private final AtomicLong mAccessClock = new AtomicLong();
+
+    /**
+     * Background writer in write-behind mode, or null if puts are written right away.
+     */
+    private volatile CacheWriter mWriter;
+
+    /**
+     * Background maintenance thread, or null if puts prune by themselves.
+     */
+    private volatile CacheMaintainer mMaintainer;
+
+    private volatile MaintenanceListener mMaintenanceListener;
+
+    /**
+     * Namespace of the entries the classifier puts in none, with no minimum and the whole
+     * cache as maximum. Its policy picks the entries to evict when the cache is full.
+     */
+    private final CacheNamespace mDefaultNamespace;
+
+    /**
+     * All namespaces, the default one first.
+     */
+    private volatile CacheNamespace[] mNamespaces;
+
+    private volatile Map<String, CacheNamespace> mNamespacesByName =
+            Collections.emptyMap();
+
+    private volatile NamespaceClassifier mNamespaceClassifier;
+
+    private final CacheStats.Counter mStats = new CacheStats.Counter();
+
+    /**
+     * Held while pruning, so that concurrent puts do not all prune at once.
+     */
+    private final Object mPruneLock = new Object();
 
     /**
      * The root directory to use for the cache.
@@ -74,17 +152,209 @@ public class DiskBasedCache implements Cache {
      */
     private static final int DEFAULT_DISK_USAGE_BYTES = 5 * 1024 * 1024;
 
+    /**
+     * Default number of segments the keys are partitioned across.
+     */
+    private static final int DEFAULT_SEGMENT_COUNT = 8;
+
     private static final String DEFAULT_EXTRA_FILE_DIR = "extra";
 
+    private static final String DEFAULT_NAMESPACE = "default";
+
+    /**
+     * Cleared directories are renamed to their name, this and a unique suffix.
+     */
+    private static final String TOMBSTONE_INFIX = ".deleted-";
+
     /**
      * High water mark percentage for the cache
      */
     private static final float HYSTERESIS_FACTOR = 0.9f;
 
+    /**
+     * Size from which background maintenance starts pruning, as a share of the limit.
+     */
+    private static final float HIGH_WATERMARK_FACTOR = 0.95f;
+
+    /**
+     * Size background maintenance prunes down to, as a share of the limit.
+     */
+    private static final float LOW_WATERMARK_FACTOR = 0.8f;
+
     /**
      * Magic number for current version of cache file format.
      */
-    private static final int CACHE_MAGIC = 0x20120504;
+    private static final int CACHE_MAGIC = 0x20150904;
+
+    /**
+     * Magic number for the original cache file format, still read and migrated on access.
+     */
+    private static final int CACHE_MAGIC_V1 = 0x20120504;
+
+    /**
+     * Version of the cache file format written by this implementation.
+     */
+    static final int CACHE_VERSION = 2;
+
+    /**
+     * Fixed-size part of a v2 header after the magic: payload length, ttl and soft ttl.
+     */
+    private static final int HEADER_PREFIX_SIZE = 4 + 8 + 8;
+
+    /**
+     * Flags of a v2 header.
+     */
+    private static final int FLAG_IN_MEMORY = 1;
+    private static final int FLAG_DEFLATED = 2;
+    private static final int FLAG_BLOB = 4;
+    private static final int FLAG_CHECKSUM = 8;
+    private static final int FLAG_BODY_CHECKSUM = 16;
+
+    /**
+     * Upper bound on the variable part of a header, to reject garbage before allocating.
+     */
+    private static final int MAX_HEADER_SIZE = 1024 * 1024;
+
+    /**
+     * Header names encoded as an index into this table rather than as a string. This is part
+     * of the file format: names may only ever be appended.
+     */
+    private static final String[] HEADER_NAMES = {
+            "Accept-Ranges", "Access-Control-Allow-Origin", "Age", "Cache-Control",
+            "Connection", "Content-Disposition", "Content-Encoding", "Content-Language",
+            "Content-Length", "Content-Type", "Date", "ETag", "Expires", "Keep-Alive",
+            "Last-Modified", "Location", "Pragma", "Server", "Set-Cookie", "Transfer-Encoding",
+            "Vary", "Via", "X-Android-Received-Millis", "X-Android-Response-Source",
+            "X-Android-Selected-Protocol", "X-Android-Sent-Millis", "X-Cache", "X-Powered-By",
+    };
+
+    private static final Map<String, Integer> HEADER_NAME_INDEX =
+            new HashMap<String, Integer>(HEADER_NAMES.length * 2);
+
+    static {
+        for (int i = 0; i < HEADER_NAMES.length; i++) {
+            HEADER_NAME_INDEX.put(HEADER_NAMES[i], i);
+        }
+    }
+
+    /**
+     * Buffers headers are read into and built in.
+     */
+    private static final ByteArrayPool sHeaderPool = new ByteArrayPool(16 * 1024);
+
+    /**
+     * Bodies from this size on are memory-mapped by {@link #getBuffer(String)} rather than read.
+     */
+    private static final int MAPPED_BODY_THRESHOLD = 64 * 1024;
+
+    /**
+     * Default size from which bodies of a textual content type are stored deflated.
+     */
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+
+    /**
+     * Content types, or parts of them, worth deflating.
+     */
+    private static final String[] DEFLATED_CONTENT_TYPES = {
+            "text/", "json", "javascript", "xml", "x-www-form-urlencoded",
+    };
+
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Number of leading hex digits of a file name naming the directory the file is fanned out
+     * to, so that no directory holds more than a fraction of the entries.
+     */
+    private static final int FAN_OUT_DIGITS = 2;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * MD5 digest of each thread, for {@link #getFilenameForKey(String)}; looking the
+     * algorithm up costs more than the hashing itself.
+     */
+    private static final ThreadLocal<MessageDigest> sMd5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Suffix of the file an entry is written to before being renamed over its cache file.
+     */
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * Magic number of snapshot files written by {@link #exportSnapshot(File, long)}.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x20151016;
+
+    private static final int SNAPSHOT_OP_ENTRY = 1;
+    private static final int SNAPSHOT_OP_END = 2;
+
+    /**
+     * Bodies are checked against their checksum on one read out of this many, 0 for never.
+     */
+    private volatile int mChecksumSampling = 1;
+
+    /**
+     * Number of body reads so far, to sample checksum verifications.
+     */
+    private final AtomicInteger mChecksumReads = new AtomicInteger();
+
+    /**
+     * Bodies smaller than this are stored as they are.
+     */
+    private volatile int mCompressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+
+    /**
+     * Raw size of the bodies deflated so far, and the size they were stored at.
+     */
+    private final AtomicLong mDeflatedRawBytes = new AtomicLong();
+    private final AtomicLong mDeflatedStoredBytes = new AtomicLong();
+
+    /**
+     * Index of all entries, so that start-up does not have to open every cache file.
+     */
+    private final CacheJournal mJournal;
+
+    /**
+     * Bodies shared by identical entries. Entries written before content addressing was
+     * disabled keep pointing here, so this exists either way.
+     */
+    private final CacheBlobStore mBlobStore;
+
+    /**
+     * Whether new bodies are stored in {@link #mBlobStore}.
+     */
+    private volatile boolean mContentAddressed;
+
+    /**
+     * Whether {@link #initialize()} has been called.
+     */
+    private boolean mInitializeStarted;
+
+    /**
+     * Incremented by {@link #clear()}, so that a load started before it gets discarded.
+     */
+    private final AtomicInteger mClearCount = new AtomicInteger();
+
+    /**
+     * Number of {@link #deleteTombstones()} calls not handled yet by the cleaner thread.
+     */
+    private final AtomicInteger mTombstoneRequests = new AtomicInteger();
+
+    /**
+     * Whether the cache directories are known to exist.
+     */
+    private volatile boolean mDirectoriesCreated;
 
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
@@ -92,11 +362,38 @@ public class DiskBasedCache implements Cache {
      * @param rootDirectory       The root directory of the cache.
      * @param extraDirectory      The extra directory of the cache.
      * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * @param segmentCount        The number of segments to partition the keys across,
+     *                            rounded up to a power of two.
      */
-    public DiskBasedCache(File rootDirectory, File extraDirectory, int maxCacheSizeInBytes) {
+    public DiskBasedCache(File rootDirectory, File extraDirectory, int maxCacheSizeInBytes,
+            int segmentCount) {
         mRootDirectory = rootDirectory;
         mExtraDirectory = extraDirectory;
         mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        mJournal = new CacheJournal(rootDirectory);
+        mBlobStore = new CacheBlobStore(rootDirectory);
+        mDefaultNamespace = new CacheNamespace(DEFAULT_NAMESPACE, 0, maxCacheSizeInBytes);
+        mNamespaces = new CacheNamespace[] {mDefaultNamespace};
+
+        int count = 1;
+        while (count < segmentCount) {
+            count <<= 1;
+        }
+        mSegments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            mSegments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Constructs an instance of the DiskBasedCache at the specified directory.
+     *
+     * @param rootDirectory       The root directory of the cache.
+     * @param extraDirectory      The extra directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    public DiskBasedCache(File rootDirectory, File extraDirectory, int maxCacheSizeInBytes) {
+        this(rootDirectory, extraDirectory, maxCacheSizeInBytes, DEFAULT_SEGMENT_COUNT);
     }
 
     /**
@@ -111,310 +408,2319 @@ public class DiskBasedCache implements Cache {
     }
 
     /**
-     * Clears the cache. Deletes all cached files from disk.
+     * Sets the policy deciding which entries to evict when the cache is full, instead of the
+     * default {@link LruEvictionPolicy}. Must be called before the cache is used.
+     *
+     * @return This cache, for chaining.
      */
-    @Override
-    public synchronized void clear() {
-        File[] files = mRootDirectory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                file.delete();
-            }
+    public DiskBasedCache setEvictionPolicy(EvictionPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
         }
-
-        files = mExtraDirectory.listFiles();
-        if (files != null) {
-            for (File file : files) {
-                file.delete();
+        synchronized (this) {
+            if (mInitializeStarted || mEntryCount.get() > 0) {
+                throw new IllegalStateException("The cache is already in use");
             }
+            mDefaultNamespace.setEvictionPolicy(policy);
         }
-
-        mEntries.clear();
-        mTotalSize = 0;
-        VolleyLog.d("Cache cleared.");
+        return this;
     }
 
     /**
-     * Returns the cache entry with the specified key if it exists, null otherwise.
+     * Partitions the byte budget of the cache into namespaces, each guaranteed a minimum and
+     * capped at a maximum. Entries the classifier puts in none of them share what is left with
+     * the default policy. Must be called before the cache is used.
+     *
+     * @param classifier Tells which namespace each entry belongs to.
+     * @param namespaces The namespaces; their minimums must fit into the cache together.
+     * @return This cache, for chaining.
      */
-    @Override
-    public synchronized Entry get(String key) {
-        CacheHeader entry = mEntries.get(key);
-        // if the entry does not exist, return.
-        if (entry == null) {
-            return null;
+    public DiskBasedCache setNamespaces(NamespaceClassifier classifier,
+            CacheNamespace... namespaces) {
+        if (classifier == null) {
+            throw new IllegalArgumentException("classifier must not be null");
         }
-
-        if (!entry.inMemory) {
-            File extra = getExtraFileForKey(key);
-            if (extra == null || !extra.exists()) {
-                // Cache extra file lost.
-                remove(key);
-                return null;
+        Map<String, CacheNamespace> byName = new HashMap<String, CacheNamespace>();
+        long minBytes = 0;
+        for (CacheNamespace namespace : namespaces) {
+            if (byName.put(namespace.getName(), namespace) != null
+                    || DEFAULT_NAMESPACE.equals(namespace.getName())) {
+                throw new IllegalArgumentException("Duplicate namespace " + namespace.getName());
             }
-            return entry.toCacheEntry(new byte[0]);
+            minBytes += namespace.getMinBytes();
         }
-
-        File file = getFileForKey(key);
-        CountingInputStream cis = null;
-        try {
-            cis = new CountingInputStream(new FileInputStream(file));
-            CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            return entry.toCacheEntry(data);
-        } catch (IOException e) {
-            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
-            return null;
-        } finally {
-            if (cis != null) {
-                try {
-                    cis.close();
-                } catch (IOException ioe) {
-                    return null;
-                }
+        if (minBytes > mMaxCacheSizeInBytes) {
+            throw new IllegalArgumentException("The namespace minimums exceed the cache size");
+        }
+        synchronized (this) {
+            if (mInitializeStarted || mEntryCount.get() > 0) {
+                throw new IllegalStateException("The cache is already in use");
             }
+            CacheNamespace[] all = new CacheNamespace[namespaces.length + 1];
+            all[0] = mDefaultNamespace;
+            System.arraycopy(namespaces, 0, all, 1, namespaces.length);
+            mNamespaces = all;
+            mNamespacesByName = byName;
+            mNamespaceClassifier = classifier;
         }
+        return this;
     }
 
     /**
-     * Initializes the DiskBasedCache by scanning for all files currently in the
-     * specified root directory. Creates the root directory if necessary.
+     * Makes {@link #put(String, Entry)} return once the entry is queued, and write it on a
+     * background thread. Queued entries are served by {@link #get(String)} until written.
+     *
+     * @param maxPendingBytes Data size which may be queued before puts block.
+     * @return This cache, for chaining.
      */
-    @Override
-    public synchronized void initialize() {
-        if (!mRootDirectory.exists()) {
-            if (!mRootDirectory.mkdirs()) {
-                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+    public DiskBasedCache setWriteBehind(int maxPendingBytes) {
+        if (maxPendingBytes <= 0) {
+            throw new IllegalArgumentException("maxPendingBytes must be positive");
+        }
+        synchronized (this) {
+            if (mWriter != null) {
+                throw new IllegalStateException("Write-behind is already enabled");
             }
-            return;
+            CacheWriter writer = new CacheWriter(this, maxPendingBytes);
+            writer.start();
+            mWriter = writer;
         }
+        return this;
+    }
 
-        if (!mExtraDirectory.exists()) {
-            if (!mExtraDirectory.mkdirs()) {
-                VolleyLog.e("Unable to create extra dir %s", mExtraDirectory.getAbsolutePath());
+    /**
+     * Starts a background thread which prunes the cache ahead of its size limit and sweeps
+     * out expired entries, so that puts do not have to.
+     *
+     * @param sweepIntervalMillis Time between two sweeps for expired entries.
+     * @param expiredGraceMillis  How long entries are kept past their TTL; an expired entry
+     *                            with an etag can still be revalidated cheaply.
+     * @return This cache, for chaining.
+     */
+    public DiskBasedCache setBackgroundMaintenance(long sweepIntervalMillis,
+            long expiredGraceMillis) {
+        if (sweepIntervalMillis <= 0 || expiredGraceMillis < 0) {
+            throw new IllegalArgumentException("Invalid maintenance intervals");
+        }
+        synchronized (this) {
+            if (mMaintainer != null) {
+                throw new IllegalStateException("Background maintenance is already enabled");
             }
-            return;
+            CacheMaintainer maintainer = new CacheMaintainer(this, sweepIntervalMillis,
+                    expiredGraceMillis);
+            maintainer.start();
+            mMaintainer = maintainer;
         }
+        return this;
+    }
 
-        File[] files = mRootDirectory.listFiles();
-        if (files == null) {
-            return;
+    /**
+     * Sets the listener told what each background maintenance round reclaimed.
+     *
+     * @return This cache, for chaining.
+     */
+    public DiskBasedCache setMaintenanceListener(MaintenanceListener listener) {
+        mMaintenanceListener = listener;
+        return this;
+    }
+
+    /**
+     * Stores bodies by their SHA-256 digest, so that entries with identical bodies share one
+     * file and are counted once against the size limit. Worth it when many keys resolve to
+     * the same payload, such as one image behind several URLs. Bodies of entries not kept in
+     * memory are never shared, as they live in the extra file of their key.
+     *
+     * @return This cache, for chaining.
+     */
+    public DiskBasedCache setContentAddressed(boolean contentAddressed) {
+        mContentAddressed = contentAddressed;
+        return this;
+    }
+
+    /**
+     * Sets how often bodies read are checked against the checksum they were written with.
+     * A checksum mismatch is handled like a missing entry. Headers are always checked, as
+     * they are read anyway.
+     *
+     * @param sampling Checks one read out of this many: 1, the default, checks every read,
+     *                 0 none.
+     * @return This cache, for chaining.
+     */
+    public DiskBasedCache setChecksumSampling(int sampling) {
+        if (sampling < 0) {
+            throw new IllegalArgumentException("sampling must not be negative");
         }
-        for (File file : files) {
-            BufferedInputStream fis = null;
-            CacheHeader entry = null;
-            try {
-                fis = new BufferedInputStream(new FileInputStream(file));
-                entry = CacheHeader.readHeader(fis);
-                entry.size = file.length();
-                if (!entry.inMemory) {
-                    File extra = getExtraFileForKey(entry.key);
-                    if (extra == null || !extra.exists()) {
-                        continue;
-                    }
-                    entry.size += extra.length();
-                }
-                putEntry(entry.key, entry);
+        mChecksumSampling = sampling;
+        return this;
+    }
 
-            } catch (Exception e) {
-                if (file != null && file.exists()) {
-                    file.delete();
-                }
+    /**
+     * Stops the write-behind and background maintenance threads. Puts still queued are written
+     * first, without waiting for them; call {@link #flush()} before to wait. Puts made
+     * afterwards are written right away and puts prune the cache themselves, so the cache
+     * stays usable.
+     */
+    public void shutdown() {
+        CacheWriter writer = mWriter;
+        if (writer != null) {
+            writer.quit();
+        }
+        CacheMaintainer maintainer = mMaintainer;
+        if (maintainer != null) {
+            maintainer.quit();
+        }
+    }
 
-                if (entry != null && !entry.inMemory) {
-                    File extra = getExtraFileForKey(entry.key);
-                    if (extra != null && extra.exists()) {
-                        extra.delete();
-                    }
-                }
-            } finally {
-                try {
-                    if (fis != null) {
-                        fis.close();
-                    }
-                } catch (IOException ignored) {
-                }
-            }
+    /**
+     * Blocks until all puts queued in write-behind mode are on disk.
+     */
+    public void flush() throws InterruptedException {
+        CacheWriter writer = mWriter;
+        if (writer != null) {
+            writer.flush();
         }
     }
 
     /**
-     * Invalidates an entry in the cache.
+     * Sets the size from which bodies of a textual content type, such as JSON, are stored
+     * deflated. Integer.MAX_VALUE turns compression off.
      *
-     * @param key        Cache key
-     * @param fullExpire True to fully expire the entry, false to soft expire
+     * @return This cache, for chaining.
      */
-    @Override
-    public synchronized void invalidate(String key, boolean fullExpire) {
-        Entry entry = get(key);
-        if (entry != null) {
-            entry.softTtl = 0;
-            if (fullExpire) {
-                entry.ttl = 0;
-            }
-            put(key, entry);
+    public DiskBasedCache setCompressionThreshold(int minBytes) {
+        if (minBytes < 0) {
+            throw new IllegalArgumentException("minBytes must not be negative");
         }
+        mCompressionThreshold = minBytes;
+        return this;
     }
 
     /**
-     * Puts the entry with the specified key into the cache.
+     * Returns the total size of the bodies stored deflated so far, before deflating.
+     */
+    public long getDeflatedRawBytes() {
+        return mDeflatedRawBytes.get();
+    }
+
+    /**
+     * Returns the space the bodies counted by {@link #getDeflatedRawBytes()} took once deflated.
+     */
+    public long getDeflatedStoredBytes() {
+        return mDeflatedStoredBytes.get();
+    }
+
+    /**
+     * Returns the number of {@link #get(String)} calls which found an entry.
+     */
+    public long getHitCount() {
+        return mStats.getHitCount();
+    }
+
+    /**
+     * Returns the number of {@link #get(String)} calls which found no entry.
+     */
+    public long getMissCount() {
+        return mStats.getMissCount();
+    }
+
+    /**
+     * Returns the number of entries evicted to make room for others.
      */
+    public long getEvictionCount() {
+        return mStats.getEvictionCount();
+    }
+
     @Override
-    public synchronized void put(String key, Entry entry) {
-        pruneIfNeeded(entry.data.length);
-        File file = getFileForKey(key);
-        try {
-            BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(file));
-            CacheHeader e = new CacheHeader(key, entry);
-            boolean success = e.writeHeader(fos);
-            if (!success) {
+    public CacheStats getStats() {
+        return mStats.snapshot();
+    }
+
+    @Override
+    public void resetStats() {
+        mStats.reset();
+    }
+
+    /**
+     * Clears the cache. Deletes all cached files from disk.
+     */
+    @Override
+    public void clear() {
+        clearLocked(0);
+        deleteTombstones();
+        VolleyLog.d("Cache cleared.");
+    }
+
+    /**
+     * Renames the given directory out of the way, for {@link #deleteTombstones()} to delete.
+     *
+     * @return false if the directory could not be renamed.
+     */
+    private static boolean moveToTombstone(File directory) {
+        if (!directory.exists()) {
+            return true;
+        }
+        File tombstone = new File(directory.getParentFile(),
+                directory.getName() + TOMBSTONE_INFIX + System.nanoTime());
+        return directory.renameTo(tombstone);
+    }
+
+    /**
+     * Returns the tombstones left of the given directory by {@link #clear()}, including the
+     * ones of a previous process.
+     */
+    private static File[] listTombstones(File directory) {
+        final String prefix = directory.getName() + TOMBSTONE_INFIX;
+        File parent = directory.getParentFile();
+        if (parent == null) {
+            return null;
+        }
+        return parent.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().startsWith(prefix);
+            }
+        });
+    }
+
+    /**
+     * Deletes all tombstones on a background thread. A thread already deleting picks up the
+     * tombstones of later calls, so there is at most one.
+     */
+    private void deleteTombstones() {
+        if (mTombstoneRequests.getAndIncrement() > 0) {
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                int handled;
+                do {
+                    handled = mTombstoneRequests.get();
+                    for (File directory : new File[]{mRootDirectory, mExtraDirectory}) {
+                        File[] tombstones = listTombstones(directory);
+                        if (tombstones != null) {
+                            for (File tombstone : tombstones) {
+                                deleteContents(tombstone);
+                                tombstone.delete();
+                            }
+                        }
+                    }
+                } while (mTombstoneRequests.addAndGet(-handled) > 0);
+            }
+        }, "volley-cache-cleaner").start();
+    }
+
+    /**
+     * Deletes everything inside the given directory.
+     */
+    private static void deleteContents(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                deleteContents(file);
+            }
+            file.delete();
+        }
+    }
+
+    /**
+     * Takes the lock of every segment from the given index on, then clears the cache.
+     */
+    private void clearLocked(int index) {
+        if (index < mSegments.length) {
+            synchronized (mSegments[index]) {
+                clearLocked(index + 1);
+            }
+            return;
+        }
+
+        if (mWriter != null) {
+            mWriter.discardAll();
+        }
+        mJournal.reset();
+        // Swap the directories for empty ones; deleting their content can take seconds.
+        if (!moveToTombstone(mRootDirectory)) {
+            deleteContents(mRootDirectory);
+        }
+        if (!moveToTombstone(mExtraDirectory)) {
+            deleteContents(mExtraDirectory);
+        }
+        mDirectoriesCreated = false;
+        createDirectories();
+
+        for (Segment segment : mSegments) {
+            segment.entries.clear();
+            segment.size = 0;
+            segment.removedWhileLoading.clear();
+            segment.probedWhileLoading.clear();
+        }
+        mTotalSize.set(0);
+        mEntryCount.set(0);
+        mBlobStore.clear();
+        for (CacheNamespace namespace : mNamespaces) {
+            namespace.clear();
+        }
+        mClearCount.incrementAndGet();
+    }
+
+    /**
+     * Returns the cache entry with the specified key if it exists, null otherwise.
+     */
+    @Override
+    public Entry get(String key) {
+        final long startTime = System.nanoTime();
+        CacheWriter writer = mWriter;
+        Entry entry = writer != null ? writer.get(key) : null;
+        if (entry != null) {
+            if (!entry.inMemory && entry.fileBody == null) {
+                // The extra file is written already, only the header is queued.
+                entry = copyOf(entry);
+                entry.fileBody = new FileBody(getExtraFileForKey(key));
+            }
+            mStats.recordLookup(entry, System.nanoTime() - startTime);
+            return entry;
+        }
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            entry = getLocked(segment, key);
+        }
+        mStats.recordLookup(entry, System.nanoTime() - startTime);
+        return entry;
+    }
+
+    private Entry getLocked(Segment segment, String key) {
+        CacheHeader entry = lookupLocked(segment, key);
+        // if the entry does not exist, return.
+        if (entry == null) {
+            return null;
+        }
+
+        if (!entry.inMemory) {
+            File extra = getExtraFileForKey(key);
+            if (extra == null || !extra.exists()) {
+                // Cache extra file lost.
+                removeLocked(segment, key);
+                return null;
+            }
+            byte[] data = new byte[0];
+            if (entry.version != CACHE_VERSION) {
+                migrateLocked(segment, entry, data);
+            }
+            Entry result = entry.toCacheEntry(data);
+            result.fileBody = new FileBody(extra);
+            return result;
+        }
+
+        File file = getBodyFile(key, entry);
+        byte[] data;
+        try {
+            data = readBody(file, getBodyOffset(entry), entry);
+            if (shouldVerifyBody(entry)) {
+                verifyBody(entry, ByteBuffer.wrap(data));
+            }
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            // A file holding the entry of another key is not ours to delete.
+            removeLocked(segment, key, !(e instanceof KeyMismatchException));
+            return null;
+        }
+        if (entry.version != CACHE_VERSION) {
+            migrateLocked(segment, entry, data);
+        }
+        return entry.toCacheEntry(data);
+    }
+
+    /**
+     * Returns the file holding the body of the given entry: its blob, its cache file after the
+     * header, or its extra file.
+     */
+    private File getBodyFile(String key, CacheHeader entry) {
+        if (entry.blobDigest != null) {
+            return mBlobStore.getFile(entry.blobDigest);
+        }
+        return entry.inMemory ? getFileForKey(key) : getExtraFileForKey(key);
+    }
+
+    /**
+     * Returns the offset of the body of the given entry within {@link #getBodyFile}.
+     */
+    private static long getBodyOffset(CacheHeader entry) {
+        return entry.inMemory && entry.blobDigest == null ? entry.bodyOffset : 0;
+    }
+
+    /**
+     * Reads the body of an entry, inflating it if stored deflated. The header is already
+     * indexed, so it is only checked to belong to the entry on the way to the body.
+     */
+    private static byte[] readBody(File file, long offset, CacheHeader entry)
+            throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            if (offset > 0) {
+                verifyKey(fis, offset, entry.key);
+            }
+            if (entry.deflated) {
+                Inflater inflater = new Inflater();
+                try {
+                    byte[] data = new byte[entry.rawLength];
+                    readFully(new InflaterInputStream(fis, inflater, IO_BUFFER_SIZE), data,
+                            data.length);
+                    return data;
+                } finally {
+                    inflater.end();
+                }
+            }
+
+            final long length = fis.getChannel().size() - offset;
+            if (length < 0) {
+                throw new IOException("Truncated");
+            }
+            byte[] data = new byte[(int) length];
+            readFully(fis, data, data.length);
+            return data;
+        } finally {
+            fis.close();
+        }
+    }
+
+    /**
+     * Reads the header at the start of a cache file, leaving the stream at the body, and
+     * checks that it belongs to the given key. The header is indexed already, so only the
+     * bytes of the key are compared, without decoding the rest of it.
+     *
+     * @throws KeyMismatchException If the file holds the entry of another key.
+     */
+    private static void verifyKey(InputStream is, long headerLength, String key)
+            throws IOException {
+        if (headerLength < 4 || headerLength > 4 + HEADER_PREFIX_SIZE + MAX_HEADER_SIZE) {
+            throw new IOException("Bad header length " + headerLength);
+        }
+        final int length = (int) headerLength;
+        byte[] buffer = sHeaderPool.getBuf(length);
+        try {
+            readFully(is, buffer, length);
+            final byte[] expected = key.getBytes(UTF_8);
+            final int magic = getInt(buffer, 0);
+            final boolean matches;
+            if (magic == CACHE_MAGIC && length >= 4 + HEADER_PREFIX_SIZE) {
+                HeaderParser parser = new HeaderParser(buffer, 4 + HEADER_PREFIX_SIZE, length);
+                final int flags = parser.readVarInt();
+                if ((flags & FLAG_DEFLATED) != 0) {
+                    parser.readVarLong();
+                }
+                if ((flags & FLAG_BLOB) != 0) {
+                    parser.skipString();
+                    parser.readVarLong();
+                }
+                if ((flags & FLAG_BODY_CHECKSUM) != 0) {
+                    parser.readVarLong();
+                }
+                matches = parser.matchString(expected);
+            } else if (magic == CACHE_MAGIC_V1) {
+                // The key follows the magic, with a fixed-size length.
+                matches = new HeaderParser(buffer, 4, length).matchV1String(expected);
+            } else {
+                throw new IOException("Bad magic " + magic);
+            }
+            if (!matches) {
+                throw new KeyMismatchException("Holds another key than " + key);
+            }
+        } finally {
+            sHeaderPool.returnBuf(buffer);
+        }
+    }
+
+    /**
+     * Returns true if the body just read for the given entry is due for a checksum check.
+     */
+    private boolean shouldVerifyBody(CacheHeader entry) {
+        final int sampling = mChecksumSampling;
+        return entry.bodyCrc >= 0 && sampling > 0
+                && mChecksumReads.incrementAndGet() % sampling == 0;
+    }
+
+    /**
+     * Checks the given body, consuming the buffer, against the checksum of its entry.
+     */
+    private static void verifyBody(CacheHeader entry, ByteBuffer body) throws IOException {
+        CRC32 crc = new CRC32();
+        if (body.hasArray()) {
+            crc.update(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        } else {
+            byte[] chunk = sHeaderPool.getBuf(IO_BUFFER_SIZE);
+            try {
+                while (body.hasRemaining()) {
+                    final int count = Math.min(chunk.length, body.remaining());
+                    body.get(chunk, 0, count);
+                    crc.update(chunk, 0, count);
+                }
+            } finally {
+                sHeaderPool.returnBuf(chunk);
+            }
+        }
+        if (crc.getValue() != entry.bodyCrc) {
+            throw new IOException("Bad body checksum");
+        }
+    }
+
+    /**
+     * Returns true if the body of the given entry is worth deflating: text, large enough.
+     */
+    private boolean shouldDeflate(Entry entry) {
+        if (!entry.inMemory || entry.data.length < mCompressionThreshold
+                || entry.responseHeaders == null) {
+            return false;
+        }
+        String contentType = entry.responseHeaders.get(HTTP.CONTENT_TYPE);
+        if (contentType == null) {
+            for (Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+                if (HTTP.CONTENT_TYPE.equalsIgnoreCase(header.getKey())) {
+                    contentType = header.getValue();
+                    break;
+                }
+            }
+        }
+        if (contentType == null) {
+            return false;
+        }
+        contentType = contentType.toLowerCase(Locale.US);
+        for (String type : DEFLATED_CONTENT_TYPES) {
+            if (contentType.contains(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2);
+        Deflater deflater = new Deflater();
+        try {
+            DeflaterOutputStream dos = new DeflaterOutputStream(bos, deflater, IO_BUFFER_SIZE);
+            dos.write(data);
+            dos.finish();
+        } finally {
+            deflater.end();
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Rewrites an entry found in an older file format in the current one, now that its body
+     * has been read anyway.
+     */
+    private void migrateLocked(Segment segment, CacheHeader entry, byte[] data) {
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Migrating cache entry for key=%s from version %d",
+                    entry.key, entry.version);
+        }
+        putLocked(segment, entry.key, entry.toCacheEntry(data));
+    }
+
+    /**
+     * Returns the body of the entry with the specified key without the extra copy of
+     * {@link #get(String)}, or null if there is no such entry. Bodies of at least
+     * {@link #MAPPED_BODY_THRESHOLD} bytes are memory-mapped, smaller ones are read into a
+     * buffer of their own; for entries not kept in memory this is the content of the extra
+     * file. Either way the buffer is read-only.
+     * <p/>
+     * The buffer stays valid after the entry is replaced or removed, as cache files are never
+     * written over in place.
+     */
+    public ByteBuffer getBuffer(String key) {
+        CacheWriter writer = mWriter;
+        Entry pending = writer != null ? writer.get(key) : null;
+        if (pending != null) {
+            if (pending.inMemory) {
+                return ByteBuffer.wrap(pending.data).asReadOnlyBuffer();
+            }
+            // Only the header is queued, the body is in the extra file already.
+            File extra = pending.fileBody != null
+                    ? pending.fileBody.getFile() : getExtraFileForKey(key);
+            try {
+                return readBuffer(extra, 0).asReadOnlyBuffer();
+            } catch (IOException e) {
+                VolleyLog.d("%s: %s", extra.getAbsolutePath(), e.toString());
+                return null;
+            }
+        }
+        ByteBuffer buffer;
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            buffer = getBufferLocked(segment, key);
+        }
+        return buffer;
+    }
+
+    private ByteBuffer getBufferLocked(Segment segment, String key) {
+        CacheHeader entry = lookupLocked(segment, key);
+        if (entry == null) {
+            return null;
+        }
+        File file = getBodyFile(key, entry);
+        final long offset = getBodyOffset(entry);
+        FileInputStream fis = null;
+        try {
+            ByteBuffer buffer;
+            if (entry.deflated) {
+                // Nothing to map, the body has to be inflated onto the heap anyway.
+                buffer = ByteBuffer.wrap(readBody(file, offset, entry));
+            } else {
+                if (offset > 0) {
+                    fis = new FileInputStream(file);
+                    verifyKey(fis, offset, key);
+                }
+                buffer = readBuffer(file, offset);
+            }
+            if (shouldVerifyBody(entry)) {
+                verifyBody(entry, buffer.duplicate());
+            }
+            return buffer.asReadOnlyBuffer();
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            removeLocked(segment, key, !(e instanceof KeyMismatchException));
+            return null;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the content of the given file from the given offset on, memory-mapped from
+     * {@link #MAPPED_BODY_THRESHOLD} bytes on.
+     */
+    private static ByteBuffer readBuffer(File file, long offset) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            final long length = fis.getChannel().size() - offset;
+            if (length < 0) {
+                throw new IOException("Truncated");
+            }
+            if (length >= MAPPED_BODY_THRESHOLD) {
+                return fis.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+            }
+            byte[] data = new byte[(int) length];
+            fis.getChannel().position(offset);
+            readFully(fis, data, data.length);
+            return ByteBuffer.wrap(data);
+        } finally {
+            try {
+                fis.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Looks up the header for the given key and marks it as used.
+     *
+     * @return The header, or null if there is no entry for the key.
+     */
+    private CacheHeader lookupLocked(Segment segment, String key) {
+        CacheHeader entry = segment.entries.get(key);
+        if (entry == null && !segment.loaded && !segment.removedWhileLoading.contains(key)) {
+            // The index is still loading; look at the entry's own file instead of waiting.
+            entry = probeEntry(key);
+            if (entry != null) {
+                putEntry(segment, key, entry);
+                segment.probedWhileLoading.put(key, entry);
+            }
+        }
+        if (entry != null) {
+            entry.accessTime = mAccessClock.incrementAndGet();
+            entry.namespace.onAccess(key);
+        }
+        return entry;
+    }
+
+    /**
+     * Initializes the DiskBasedCache from its journal, or by scanning for all files currently
+     * in the specified root directory if the journal is missing or corrupt. Creates the root
+     * directory if necessary.
+     * <p/>
+     * The index is loaded without holding any segment lock, so the cache keeps serving
+     * requests meanwhile: {@link #get(String)} resolves keys which are not indexed yet from
+     * their own file, and entries put or removed during the load take precedence over the
+     * loaded ones.
+     */
+    @Override
+    public void initialize() {
+        synchronized (this) {
+            if (mInitializeStarted) {
+                return;
+            }
+            mInitializeStarted = true;
+        }
+        // Finish deleting what a clear() of a previous process left behind.
+        deleteTombstones();
+        final int clearCount = mClearCount.get();
+
+        long startTime = SystemClock.elapsedRealtime();
+        final long startWallTime = System.currentTimeMillis();
+        Map<String, CacheHeader> entries = new LinkedHashMap<String, CacheHeader>();
+        Set<String> dirtyKeys = new HashSet<String>();
+        boolean fromJournal = false;
+        if (createDirectories()) {
+            migrateLegacyFiles(startWallTime);
+            fromJournal = mJournal.read(entries, dirtyKeys);
+            if (!fromJournal) {
+                scanRootDirectory(entries, startWallTime);
+            }
+        }
+        for (String key : dirtyKeys) {
+            deleteDirtyEntry(key);
+        }
+
+        List<List<CacheHeader>> loaded = new ArrayList<List<CacheHeader>>(mSegments.length);
+        for (int i = 0; i < mSegments.length; i++) {
+            loaded.add(new ArrayList<CacheHeader>());
+        }
+        // Loaded entries are older than anything touched while loading, in journal order.
+        long accessTime = -entries.size();
+        for (CacheHeader entry : entries.values()) {
+            entry.accessTime = accessTime++;
+            loaded.get(segmentIndexFor(entry.key)).add(entry);
+        }
+
+        for (int i = 0; i < mSegments.length; i++) {
+            Segment segment = mSegments[i];
+            synchronized (segment) {
+                if (clearCount == mClearCount.get()) {
+                    List<String> touched = new ArrayList<String>(segment.entries.keySet());
+                    for (CacheHeader entry : loaded.get(i)) {
+                        CacheHeader current = segment.entries.get(entry.key);
+                        if (current == null
+                                ? !segment.removedWhileLoading.contains(entry.key)
+                                : current == segment.probedWhileLoading.get(entry.key)) {
+                            // A probed header is read from the file, which may lag behind
+                            // the metadata updates in the journal.
+                            if (current != null) {
+                                entry.accessTime = current.accessTime;
+                            }
+                            putEntry(segment, entry.key, entry);
+                        }
+                    }
+                    // Move the entries touched while loading back to the most recent end.
+                    for (String key : touched) {
+                        segment.entries.get(key).namespace.onAccess(key);
+                    }
+                }
+                segment.removedWhileLoading.clear();
+                segment.probedWhileLoading.clear();
+                segment.loaded = true;
+            }
+        }
+        // Every entry now holds a reference to its blob, whatever is left is garbage.
+        mBlobStore.deleteOrphans(startWallTime);
+        if (fromJournal) {
+            deleteOrphanFiles(startWallTime);
+        }
+
+        if (!fromJournal) {
+            // Rebuild the journal so that the next start-up can skip the scan.
+            rewriteJournal();
+        }
+
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Initialized %d entries from %s, %d ms", entries.size(),
+                    fromJournal ? "journal" : "scan", SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * Deletes the files of a key which was being written when a previous process died: they
+     * may be those of either entry, or not match the journal record of either.
+     */
+    private void deleteDirtyEntry(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            // Put or probed meanwhile, so its files are whole again.
+            if (segment.entries.containsKey(key)) {
+                return;
+            }
+            File file = getFileForKey(key);
+            new File(file.getPath() + TMP_SUFFIX).delete();
+            file.delete();
+            getExtraFileForKey(key).delete();
+            mJournal.remove(key);
+        }
+        if (VolleyLog.DEBUG) {
+            VolleyLog.v("Dropped cache entry for key=%s, interrupted while written", key);
+        }
+    }
+
+    /**
+     * Deletes the cache files which no entry points to. The journal is only flushed, not
+     * synced, after a put, so a crash can lose the put record of files already in place; a
+     * scan would index them again, but a load from the journal never looks at them. Files
+     * written since the given start time are left alone.
+     */
+    private void deleteOrphanFiles(long startTime) {
+        Set<String> names = new HashSet<String>(mEntryCount.get() * 2);
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                for (String key : segment.entries.keySet()) {
+                    names.add(getFilenameForKey(key));
+                }
+            }
+        }
+        int deleted = 0;
+        for (File file : listFanOutFiles(mRootDirectory)) {
+            final String name = file.getName();
+            if (names.contains(name) || file.lastModified() >= startTime) {
+                continue;
+            }
+            if (name.endsWith(TMP_SUFFIX)) {
+                // Left behind by a put which did not complete.
+                deleted += file.delete() ? 1 : 0;
+                continue;
+            }
+            // Indexed since the names were taken, or a stray: its key tells.
+            final String key = readKey(file);
+            if (key == null) {
+                deleted += file.delete() ? 1 : 0;
+                continue;
+            }
+            Segment segment = segmentFor(key);
+            synchronized (segment) {
+                if (!segment.entries.containsKey(key) && file.lastModified() < startTime) {
+                    deleted += file.delete() ? 1 : 0;
+                    getExtraFileForKey(key).delete();
+                }
+            }
+        }
+        for (File extra : listFanOutFiles(mExtraDirectory)) {
+            // An extra file is only reachable through the cache file of the same name.
+            if (!names.contains(extra.getName()) && extra.lastModified() < startTime
+                    && !getFanOutFile(mRootDirectory, extra.getName()).exists()) {
+                deleted += extra.delete() ? 1 : 0;
+            }
+        }
+        if (VolleyLog.DEBUG && deleted > 0) {
+            VolleyLog.v("Deleted %d orphan cache files", deleted);
+        }
+    }
+
+    /**
+     * Returns the files in the fan-out directories of the given root.
+     */
+    private static List<File> listFanOutFiles(File root) {
+        List<File> result = new ArrayList<File>();
+        File[] directories = root.listFiles();
+        if (directories == null) {
+            return result;
+        }
+        for (File directory : directories) {
+            if (!isFanOutDirectory(directory)) {
+                continue;
+            }
+            File[] files = directory.listFiles();
+            if (files != null) {
+                Collections.addAll(result, files);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates the cache directories if they do not exist yet.
+     *
+     * @return false if the root directory did not exist, so there is nothing to load.
+     */
+    private boolean createDirectories() {
+        if (mDirectoriesCreated) {
+            return true;
+        }
+        if (!mExtraDirectory.exists()) {
+            if (!mExtraDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create extra dir %s", mExtraDirectory.getAbsolutePath());
+            }
+        }
+
+        boolean existed = true;
+        if (!mRootDirectory.exists()) {
+            existed = false;
+            if (!mRootDirectory.mkdirs()) {
+                VolleyLog.e("Unable to create cache dir %s", mRootDirectory.getAbsolutePath());
+            }
+        }
+        mDirectoriesCreated = true;
+        return existed;
+    }
+
+    /**
+     * Reads the header of the file for the given key, for lookups made before the index
+     * is loaded.
+     *
+     * @return The header, or null if there is no readable entry for the key.
+     */
+    private CacheHeader probeEntry(String key) {
+        File file = getFileForKey(key);
+        if (!file.exists()) {
+            // It may not have been migrated yet.
+            File legacy = new File(mRootDirectory, getLegacyFilenameForKey(key));
+            if (!legacy.exists() || !key.equals(readKey(legacy))
+                    || !moveLegacyFilesLocked(legacy, key)) {
+                return null;
+            }
+        }
+        CountingInputStream fis = null;
+        try {
+            fis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+            CacheHeader entry = CacheHeader.readHeader(fis);
+            if (!key.equals(entry.key)) {
+                return null;
+            }
+            entry.bodyOffset = fis.bytesRead;
+            entry.size = file.length();
+            if (!entry.inMemory) {
+                File extra = getExtraFileForKey(key);
+                if (!extra.exists()) {
+                    return null;
+                }
+                entry.size += extra.length();
+            }
+            return entry;
+        } catch (IOException e) {
+            // Leave it alone, it may be still being written; the load sorts it out.
+            return null;
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Recovery path of {@link #initialize()}: reads the header of every file in the fan-out
+     * directories, deleting the files which cannot be read.
+     *
+     * @param entries   The map to fill.
+     * @param startTime Wall time the scan started at; newer files may still be being written
+     *                  and are never deleted.
+     */
+    private void scanRootDirectory(Map<String, CacheHeader> entries, long startTime) {
+        for (File file : listFanOutFiles(mRootDirectory)) {
+            scanFile(file, entries, startTime);
+        }
+    }
+
+    private void scanFile(File file, Map<String, CacheHeader> entries, long startTime) {
+        if (file.getName().endsWith(TMP_SUFFIX)) {
+            // Left behind by a put which did not complete.
+            if (file.lastModified() < startTime) {
+                file.delete();
+            }
+            return;
+        }
+        CountingInputStream fis = null;
+        CacheHeader entry = null;
+        try {
+            fis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+            entry = CacheHeader.readHeader(fis);
+            if (!file.equals(getFileForKey(entry.key))) {
+                // Not where its key hashes to, so it would never be found; its extra file
+                // may well be the one of the right file.
+                entry = null;
+                throw new IOException("Misplaced");
+            }
+            entry.bodyOffset = fis.bytesRead;
+            entry.size = file.length();
+            if (!entry.inMemory) {
+                File extra = getExtraFileForKey(entry.key);
+                if (extra == null || !extra.exists()) {
+                    return;
+                }
+                entry.size += extra.length();
+            }
+            entries.put(entry.key, entry);
+
+        } catch (Exception e) {
+            if (file.lastModified() >= startTime) {
+                return;
+            }
+            if (file.exists()) {
+                file.delete();
+            }
+
+            if (entry != null && !entry.inMemory) {
+                File extra = getExtraFileForKey(entry.key);
+                if (extra != null && extra.exists()) {
+                    extra.delete();
+                }
+            }
+        } finally {
+            try {
+                if (fis != null) {
+                    fis.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Moves the files of a cache written in the former flat layout to where their key hashes
+     * to now. Nothing else writes plain files to the root directory, so this only finds work
+     * on the first start-up after an upgrade.
+     *
+     * @param startTime Wall time the load started at; unreadable files older than that are
+     *                  deleted.
+     */
+    private void migrateLegacyFiles(long startTime) {
+        File[] files = mRootDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        int migrated = 0;
+        for (File file : files) {
+            if (file.isDirectory() || CacheJournal.isJournalFile(file)) {
+                continue;
+            }
+            final String key = readKey(file);
+            if (key == null || !file.getName().equals(getLegacyFilenameForKey(key))) {
+                if (file.lastModified() < startTime) {
+                    file.delete();
+                }
+                continue;
+            }
+            // Under the segment lock, as a lookup may be probing the same key meanwhile.
+            synchronized (segmentFor(key)) {
+                if (file.exists() && moveLegacyFilesLocked(file, key)) {
+                    migrated++;
+                }
+            }
+        }
+        if (VolleyLog.DEBUG && migrated > 0) {
+            VolleyLog.v("Migrated %d cache files to the fan-out layout", migrated);
+        }
+    }
+
+    /**
+     * Moves the cache file of the given key, and its extra file if any, from the former flat
+     * layout to the fan-out one.
+     *
+     * @param file The file of the key in the flat layout, known to hold the key.
+     * @return false if the file could not be moved.
+     */
+    private boolean moveLegacyFilesLocked(File file, String key) {
+        File target = getFileForKey(key);
+        target.getParentFile().mkdirs();
+        if (!file.renameTo(target)) {
+            VolleyLog.d("Could not migrate %s", file.getAbsolutePath());
+            return false;
+        }
+        File extra = new File(mExtraDirectory, file.getName());
+        if (extra.exists()) {
+            File extraTarget = getExtraFileForKey(key);
+            extraTarget.getParentFile().mkdirs();
+            if (!extra.renameTo(extraTarget)) {
+                VolleyLog.d("Could not migrate %s", extra.getAbsolutePath());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the key in the header of the given cache file, or null if it cannot be read.
+     */
+    private static String readKey(File file) {
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(file));
+            return CacheHeader.readHeader(is).key;
+        } catch (Exception e) {
+            return null;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Invalidates an entry in the cache.
+     *
+     * @param key        Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry pending = mWriter != null ? mWriter.get(key) : null;
+            if (pending != null) {
+                Entry updated = copyOf(pending);
+                updated.softTtl = 0;
+                if (fullExpire) {
+                    updated.ttl = 0;
+                }
+                if (mWriter.replace(key, pending, updated)) {
+                    return;
+                }
+            }
+            CacheHeader entry = lookupLocked(segment, key);
+            if (entry != null) {
+                CacheHeader updated = new CacheHeader(key, entry.toCacheEntry(new byte[0]));
+                updated.softTtl = 0;
+                if (fullExpire) {
+                    updated.ttl = 0;
+                }
+                updateHeaderLocked(segment, entry, updated);
+            }
+        }
+        compactJournalIfNeeded();
+    }
+
+    /**
+     * Replaces the metadata of an entry without touching its data. The new header goes to
+     * the journal, and only a changed expiry is patched into the header of the cache file, so
+     * the work is proportional to the header rather than the body. The entry stays in its
+     * namespace.
+     */
+    @Override
+    public void updateMetadata(String key, Entry entry) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry pending = mWriter != null ? mWriter.get(key) : null;
+            if (pending != null) {
+                Entry updated = copyOf(entry);
+                updated.inMemory = pending.inMemory;
+                updated.data = pending.data;
+                if (mWriter.replace(key, pending, updated)) {
+                    return;
+                }
+            }
+            CacheHeader current = lookupLocked(segment, key);
+            if (current != null) {
+                updateHeaderLocked(segment, current, new CacheHeader(key, entry));
+            }
+        }
+        compactJournalIfNeeded();
+    }
+
+    private static Entry copyOf(Entry entry) {
+        Entry copy = new Entry();
+        copy.inMemory = entry.inMemory;
+        copy.data = entry.data;
+        copy.etag = entry.etag;
+        copy.serverDate = entry.serverDate;
+        copy.lastModified = entry.lastModified;
+        copy.ttl = entry.ttl;
+        copy.softTtl = entry.softTtl;
+        copy.responseHeaders = entry.responseHeaders;
+        copy.fileBody = entry.fileBody;
+        return copy;
+    }
+
+    private void updateHeaderLocked(Segment segment, CacheHeader entry, CacheHeader updated) {
+        final String key = entry.key;
+        // The data stays where it is, so does the way it is stored, and its namespace.
+        updated.inMemory = entry.inMemory;
+        updated.deflated = entry.deflated;
+        updated.rawLength = entry.rawLength;
+        updated.blobDigest = entry.blobDigest;
+        updated.blobLength = entry.blobLength;
+        updated.bodyCrc = entry.bodyCrc;
+        updated.namespace = entry.namespace;
+        updated.size = entry.size;
+        updated.bodyOffset = entry.bodyOffset;
+        updated.version = entry.version;
+        updated.accessTime = entry.accessTime;
+
+        // The journal record holds the whole new header and wins over the file on the next
+        // start-up; the file catches up when the entry is put again. Only the expiry is patched
+        // into the file as well, so that an entry restored by a scan is not fresh again.
+        if (entry.version == CACHE_VERSION
+                && (updated.ttl != entry.ttl || updated.softTtl != entry.softTtl)) {
+            mJournal.dirty(key);
+            try {
+                patchExpiry(getFileForKey(key), entry.bodyOffset, key, updated.ttl,
+                        updated.softTtl);
+                mStats.recordWrite(entry.bodyOffset);
+            } catch (KeyMismatchException e) {
+                // The file is not ours to patch, and the entry is lost.
+                VolleyLog.d("Failed to update header for key=%s: %s", key, e.toString());
+                removeLocked(segment, key, false);
+                return;
+            } catch (IOException e) {
+                // The key bytes are left as they were, so the body can still be read.
+                VolleyLog.d("Failed to update header for key=%s: %s", key, e.toString());
+            }
+        }
+        putEntry(segment, key, updated);
+        mJournal.put(updated, true);
+    }
+
+    /**
+     * Overwrites the ttl and soft ttl in the fixed-size prefix of a v2 cache file header,
+     * along with the checksum covering them. Only the header is read and written back.
+     *
+     * @throws KeyMismatchException If the file holds the entry of another key.
+     */
+    private static void patchExpiry(File file, long headerLength, String key, long ttl,
+            long softTtl) throws IOException {
+        if (headerLength < 4 + HEADER_PREFIX_SIZE
+                || headerLength > 4 + HEADER_PREFIX_SIZE + MAX_HEADER_SIZE) {
+            throw new IOException("Bad header length " + headerLength);
+        }
+        final int length = (int) headerLength;
+        byte[] header = new byte[length];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.readFully(header);
+            verifyKey(new ByteArrayInputStream(header), length, key);
+            final int payloadLength = getInt(header, 4);
+            if (getInt(header, 0) != CACHE_MAGIC
+                    || payloadLength != length - 4 - HEADER_PREFIX_SIZE) {
+                throw new IOException("Not a v2 header of " + length + " bytes");
+            }
+            putLong(header, 8, ttl);
+            putLong(header, 16, softTtl);
+            final int payload = 4 + HEADER_PREFIX_SIZE;
+            final int flags = new HeaderParser(header, payload, length).readVarInt();
+            if ((flags & FLAG_CHECKSUM) != 0) {
+                CRC32 crc = new CRC32();
+                crc.update(header, payload, payloadLength - 4);
+                crc.update(header, 4, HEADER_PREFIX_SIZE);
+                putInt(header, length - 4, (int) crc.getValue());
+            }
+            raf.seek(0);
+            raf.write(header);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache.
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        CacheWriter writer = mWriter;
+        if (writer != null && writer.enqueue(key, entry)) {
+            return;
+        }
+        createDirectories();
+        pruneIfNeeded(namespaceFor(key, entry.responseHeaders), entry.data.length);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            if (writer != null) {
+                // Not queued, the writer is quitting or we were interrupted; an older queued
+                // put of the key must not overwrite this one.
+                writer.discard(key);
+            }
+            putLocked(segment, key, entry);
+        }
+        compactJournalIfNeeded();
+    }
+
+    /**
+     * Writes an entry queued by {@link #put(String, Entry)} in write-behind mode, unless it has
+     * been replaced or removed while queued. Called on the {@link CacheWriter} thread.
+     *
+     * @param written Collects the files holding the entry, to be synced before the journal.
+     */
+    void writePending(String key, Entry entry, List<File> written) {
+        createDirectories();
+        pruneIfNeeded(namespaceFor(key, entry.responseHeaders), entry.data.length);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            // Checked under the segment lock, which remove() and clear() discard under.
+            if (mWriter.isPending(key, entry)) {
+                putLocked(segment, key, entry);
+                CacheHeader header = segment.entries.get(key);
+                if (header != null) {
+                    written.add(getFileForKey(key));
+                    if (header.blobDigest != null || !header.inMemory) {
+                        written.add(getBodyFile(key, header));
+                    }
+                }
+            }
+        }
+        compactJournalIfNeeded();
+    }
+
+    /**
+     * Forces the given files to the disk. Missing ones, which were removed or replaced since,
+     * are skipped.
+     */
+    static void syncFiles(List<File> files) {
+        for (File file : files) {
+            FileInputStream fis = null;
+            try {
+                fis = new FileInputStream(file);
+                fis.getFD().sync();
+            } catch (IOException e) {
+                // Gone already, or unsyncable; the journal replay copes with both.
+            } finally {
+                if (fis != null) {
+                    try {
+                        fis.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the journal to the disk, once per batch of queued puts.
+     */
+    void syncJournal() {
+        mJournal.sync();
+    }
+
+    /**
+     * Writes the most recently used entries with their bodies into a single file, which
+     * {@link #importSnapshot(InputStream)} restores in one sequential pass: to warm the cache
+     * up again after {@link #clear()}, or on a fresh install from a snapshot shipped with the
+     * app. Entries still queued in write-behind mode are left out.
+     *
+     * @param file     The file to write; it is only replaced once the snapshot is complete.
+     * @param maxBytes The maximum total size the included entries take in the cache.
+     * @return The number of entries written, or -1 if the snapshot could not be written.
+     */
+    public int exportSnapshot(File file, long maxBytes) {
+        List<CacheHeader> entries = new ArrayList<CacheHeader>();
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                entries.addAll(segment.entries.values());
+            }
+        }
+        Collections.sort(entries, new Comparator<CacheHeader>() {
+            @Override
+            public int compare(CacheHeader lhs, CacheHeader rhs) {
+                return lhs.accessTime > rhs.accessTime ? -1
+                        : (lhs.accessTime == rhs.accessTime ? 0 : 1);
+            }
+        });
+        List<CacheHeader> selected = new ArrayList<CacheHeader>();
+        long remaining = maxBytes;
+        for (CacheHeader entry : entries) {
+            if (entry.size <= remaining) {
+                selected.add(entry);
+                remaining -= entry.size;
+            }
+        }
+        // Least recently used first, so that the import leaves the hottest entries the most
+        // recently used ones, and evicts the others first if the cache fills up.
+        Collections.reverse(selected);
+
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        OutputStream os = null;
+        int count = 0;
+        try {
+            os = new BufferedOutputStream(new FileOutputStream(tmp), IO_BUFFER_SIZE);
+            writeInt(os, SNAPSHOT_MAGIC);
+            writeLong(os, System.currentTimeMillis());
+            for (CacheHeader entry : selected) {
+                if (writeSnapshotEntry(os, entry)) {
+                    count++;
+                }
+            }
+            os.write(SNAPSHOT_OP_END);
+            os.close();
+            os = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not rename " + tmp.getAbsolutePath());
+            }
+            return count;
+        } catch (IOException e) {
+            VolleyLog.d("Failed to export cache snapshot to %s: %s", file.getAbsolutePath(),
+                    e.toString());
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException ignored) {
+                }
+            }
+            tmp.delete();
+            return -1;
+        }
+    }
+
+    /**
+     * Writes one entry of a snapshot.
+     *
+     * @return false if the entry could not be read, and was left out.
+     * @throws IOException If the snapshot could not be written.
+     */
+    private boolean writeSnapshotEntry(OutputStream os, CacheHeader entry) throws IOException {
+        final String key = entry.key;
+        byte[] data = null;
+        FileInputStream extra = null;
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            if (!segment.entries.containsKey(key)) {
+                return false;
+            }
+            try {
+                if (entry.inMemory) {
+                    data = readBody(getBodyFile(key, entry), getBodyOffset(entry), entry);
+                    if (shouldVerifyBody(entry)) {
+                        verifyBody(entry, ByteBuffer.wrap(data));
+                    }
+                } else {
+                    // Opened under the lock: the open file keeps its content even if the entry
+                    // is replaced while it is copied.
+                    extra = new FileInputStream(getExtraFileForKey(key));
+                }
+            } catch (IOException e) {
+                VolleyLog.d("Left %s out of the snapshot: %s", key, e.toString());
+                return false;
+            }
+        }
+        try {
+            CRC32 crc = new CRC32();
+            os.write(SNAPSHOT_OP_ENTRY);
+            entry.writeFields(os);
+            if (data != null) {
+                writeLong(os, data.length);
+                os.write(data);
+                crc.update(data, 0, data.length);
+            } else {
+                final long length = extra.getChannel().size();
+                writeLong(os, length);
+                copy(extra, os, length, crc);
+            }
+            writeLong(os, crc.getValue());
+            return true;
+        } finally {
+            if (extra != null) {
+                extra.close();
+            }
+        }
+    }
+
+    /**
+     * Restores the entries of a snapshot written by {@link #exportSnapshot(File, long)}.
+     * Entries the cache holds already are kept, as they are newer. TTLs are restored as they
+     * were, absolute times set from the server's response: an entry which expired since the
+     * snapshot was taken comes back expired, and its first read revalidates it, with its etag
+     * still at hand for a conditional request.
+     * <p/>
+     * Reads the stream in one sequential pass and closes it. A corrupt or truncated snapshot
+     * stops the import, keeping the entries restored so far.
+     *
+     * @return The number of entries restored.
+     */
+    public int importSnapshot(InputStream in) {
+        int count = 0;
+        try {
+            InputStream is = new BufferedInputStream(in, IO_BUFFER_SIZE);
+            if (readInt(is) != SNAPSHOT_MAGIC) {
+                throw new IOException("Bad snapshot magic");
+            }
+            final long takenAt = readLong(is);
+            createDirectories();
+            int op;
+            while ((op = read(is)) == SNAPSHOT_OP_ENTRY) {
+                if (importSnapshotEntry(is)) {
+                    count++;
+                }
+            }
+            if (op != SNAPSHOT_OP_END) {
+                throw new IOException("Bad snapshot op " + op);
+            }
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Imported %d entries from a snapshot taken %d ms ago", count,
+                        System.currentTimeMillis() - takenAt);
+            }
+        } catch (IOException e) {
+            VolleyLog.d("Cache snapshot import stopped after %d entries: %s", count,
+                    e.toString());
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
+        compactJournalIfNeeded();
+        return count;
+    }
+
+    /**
+     * Restores the entries of the given snapshot file, see {@link #importSnapshot(InputStream)}.
+     *
+     * @return The number of entries restored.
+     */
+    public int importSnapshot(File file) {
+        try {
+            return importSnapshot(new FileInputStream(file));
+        } catch (IOException e) {
+            VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
+            return 0;
+        }
+    }
+
+    /**
+     * Reads one entry of a snapshot, and puts it unless the cache holds the key already.
+     *
+     * @return true if the entry was put.
+     */
+    private boolean importSnapshotEntry(InputStream is) throws IOException {
+        CacheHeader header = CacheHeader.readHeader(is);
+        final String key = header.key;
+        final long length = readLong(is);
+        if (length < 0 || (header.inMemory && length > Integer.MAX_VALUE)) {
+            throw new IOException("Bad snapshot body length " + length);
+        }
+        Segment segment = segmentFor(key);
+        boolean present;
+        synchronized (segment) {
+            present = lookupLocked(segment, key) != null;
+        }
+        CRC32 crc = new CRC32();
+        if (present) {
+            copy(is, null, length, crc);
+            readLong(is);
+            return false;
+        }
+
+        Entry entry;
+        File tmp = null;
+        if (header.inMemory) {
+            byte[] data = new byte[(int) length];
+            readFully(is, data, data.length);
+            crc.update(data, 0, data.length);
+            entry = header.toCacheEntry(data);
+        } else {
+            File extra = getExtraFileForKey(key);
+            File parent = extra.getParentFile();
+            if (!parent.exists()) {
+                parent.mkdirs();
+            }
+            tmp = new File(extra.getPath() + TMP_SUFFIX);
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp), IO_BUFFER_SIZE);
+            try {
+                copy(is, os, length, crc);
+            } catch (IOException e) {
+                os.close();
+                tmp.delete();
+                throw e;
+            }
+            os.close();
+            entry = header.toCacheEntry(new byte[0]);
+        }
+        if (readLong(is) != crc.getValue()) {
+            if (tmp != null) {
+                tmp.delete();
+            }
+            throw new IOException("Bad snapshot checksum for " + key);
+        }
+        pruneIfNeeded(namespaceFor(key, entry.responseHeaders), (int) Math.min(length,
+                Integer.MAX_VALUE));
+        synchronized (segment) {
+            // Another thread may have put the key meanwhile; its entry is newer.
+            if (lookupLocked(segment, key) == null
+                    && (tmp == null || tmp.renameTo(getExtraFileForKey(key)))) {
+                putLocked(segment, key, entry);
+                return segment.entries.containsKey(key);
+            }
+        }
+        if (tmp != null) {
+            tmp.delete();
+        }
+        return false;
+    }
+
+    /**
+     * Copies the given number of bytes, updating the checksum with them.
+     *
+     * @param os The stream to copy to, or null to skip the bytes.
+     */
+    private static void copy(InputStream is, OutputStream os, long length, CRC32 crc)
+            throws IOException {
+        byte[] buffer = new byte[(int) Math.min(length, IO_BUFFER_SIZE)];
+        long remaining = length;
+        while (remaining > 0) {
+            int count = is.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+            if (count == -1) {
+                throw new EOFException();
+            }
+            crc.update(buffer, 0, count);
+            if (os != null) {
+                os.write(buffer, 0, count);
+            }
+            remaining -= count;
+        }
+    }
+
+    private void putLocked(Segment segment, String key, Entry entry) {
+        File file = getFileForKey(key);
+        // Never write over a file in place: write a temporary file and rename it over the cache
+        // file instead, so that a crash leaves either entry whole, and a reader which mapped
+        // the old body keeps it.
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        String pinned = null;
+        boolean dirty = false;
+        try {
+            CacheHeader e = new CacheHeader(key, entry);
+            byte[] body = entry.data;
+            if (e.inMemory) {
+                CRC32 crc = new CRC32();
+                crc.update(body, 0, body.length);
+                e.bodyCrc = crc.getValue();
+            }
+            if (shouldDeflate(entry)) {
+                byte[] deflated = deflate(body);
+                if (deflated.length < body.length) {
+                    e.deflated = true;
+                    e.rawLength = body.length;
+                    body = deflated;
+                    mDeflatedRawBytes.addAndGet(entry.data.length);
+                    mDeflatedStoredBytes.addAndGet(deflated.length);
+                }
+            }
+            if (mContentAddressed && e.inMemory && body.length > 0) {
+                e.blobDigest = CacheBlobStore.digest(body);
+                e.blobLength = body.length;
+                // Pin the blob, so that no other segment drops it before the entry is indexed.
+                final long stored = mBlobStore.store(e.blobDigest, body);
+                mTotalSize.addAndGet(stored);
+                mStats.recordWrite(stored);
+                pinned = e.blobDigest;
+            }
+            File parent = file.getParentFile();
+            if (!parent.exists()) {
+                parent.mkdirs();
+            }
+            // Until the put record follows, a start-up cannot trust the files of the key.
+            mJournal.dirty(key);
+            dirty = true;
+            BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(tmp));
+            boolean success = e.writeHeader(fos);
+            if (!success) {
                 fos.close();
                 VolleyLog.d("Failed to write header for %s", file.getAbsolutePath());
                 throw new IOException();
             }
-            fos.write(entry.data);
+            if (pinned == null) {
+                fos.write(body);
+            }
             fos.close();
-            putEntry(key, e);
+            if (!tmp.renameTo(file)) {
+                VolleyLog.d("Could not rename %s", tmp.getAbsolutePath());
+                throw new IOException();
+            }
+            // Account for what the entry really occupies on disk, header and extra file included.
+            // A blob is accounted for by the blob store, once for all entries sharing it.
+            e.size = file.length();
+            mStats.recordWrite(e.size);
+            e.bodyOffset = pinned == null ? e.size - body.length : e.size;
+            if (!e.inMemory) {
+                e.size += getExtraFileForKey(key).length();
+            }
+            e.accessTime = mAccessClock.incrementAndGet();
+            boolean replaced = segment.entries.containsKey(key);
+            putEntry(segment, key, e);
+            mJournal.put(e, replaced);
             return;
         } catch (IOException ignored) {
+        } finally {
+            if (pinned != null) {
+                mTotalSize.addAndGet(-mBlobStore.release(pinned));
+            }
         }
-        boolean deleted = file.delete();
-        if (!deleted) {
-            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
-        } else if (!entry.inMemory) {
+        // The entry in place, if any, is left intact.
+        if (tmp.exists() && !tmp.delete()) {
+            VolleyLog.d("Could not clean up file %s", tmp.getAbsolutePath());
+        }
+        if (!entry.inMemory) {
             file = getExtraFileForKey(key);
             if (!file.delete()) {
                 VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
             }
         }
+        CacheHeader current = segment.entries.get(key);
+        if (dirty && current != null) {
+            // Vouch for the entry in place again.
+            mJournal.put(current, true);
+        }
+    }
+
+    /**
+     * Removes the specified key from the cache if it exists.
+     */
+    @Override
+    public void remove(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            if (mWriter != null) {
+                mWriter.discard(key);
+            }
+            removeLocked(segment, key);
+        }
+        compactJournalIfNeeded();
+    }
+
+    private void removeLocked(Segment segment, String key) {
+        removeLocked(segment, key, true);
+    }
+
+    /**
+     * @param deleteFiles Whether to delete the files of the entry, or only to drop it from
+     *                    the index.
+     */
+    private void removeLocked(Segment segment, String key, boolean deleteFiles) {
+        boolean deleted = !deleteFiles || getFileForKey(key).delete();
+        CacheHeader entry = removeEntry(segment, key);
+        if (entry != null) {
+            releaseBlob(entry);
+        }
+        if (!segment.loaded) {
+            segment.removedWhileLoading.add(key);
+        }
+        if (entry != null || !segment.loaded) {
+            // While loading, the journal may still hold a record for a key not indexed yet.
+            mJournal.remove(key);
+        }
+        if (!deleted) {
+            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                    key, getFilenameForKey(key));
+        } else {
+            // delete the extra file.
+            if (deleteFiles && entry != null && !entry.inMemory) {
+                deleted = getExtraFileForKey(key).delete();
+                if (!deleted) {
+                    VolleyLog.d("Could not delete extra cache entry for key=%s, filename=%s",
+                            key, getFilenameForKey(key));
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a unique filename for the specified cache key: the hex MD5 digest of the key,
+     * whose 128 bits make collisions between keys a non-issue.
+     *
+     * @param key The key to generate a file name for.
+     * @return A unique filename.
+     */
+    private static String getFilenameForKey(String key) {
+        return toHex(sMd5.get().digest(key.getBytes(UTF_8)));
+    }
+
+    /**
+     * Filename of the given cache key in the former flat layout, built from two 32-bit hash
+     * codes of the key halves. Only used to migrate such caches.
+     */
+    private static String getLegacyFilenameForKey(String key) {
+        int firstHalfLength = key.length() / 2;
+        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
+        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
+        return localFilename;
+    }
+
+    /**
+     * Returns the lower case hex representation of the given bytes.
+     */
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Returns the file for the given name within the fan-out directory it belongs to.
+     */
+    private static File getFanOutFile(File directory, String filename) {
+        return new File(new File(directory, filename.substring(0, FAN_OUT_DIGITS)), filename);
+    }
+
+    /**
+     * Returns true if the given file is one of the fan-out directories of the root directory.
+     */
+    private static boolean isFanOutDirectory(File file) {
+        return file.getName().length() == FAN_OUT_DIGITS && file.isDirectory();
+    }
+
+    /**
+     * Returns a file object for the given cache key.
+     */
+    public File getFileForKey(String key) {
+        return getFanOutFile(mRootDirectory, getFilenameForKey(key));
+    }
+
+    /**
+     * Return a extra file object for the given cache key.
+     */
+    public File getExtraFileForKey(String key) {
+        return getFanOutFile(mExtraDirectory, getFilenameForKey(key));
+    }
+
+    /**
+     * Creates a temporary file next to the extra file of the given key, to stream a body not
+     * kept in memory to. {@link #commitExtraFile(String, File)} then moves it into place, so
+     * that readers of the current extra file never see a partly written body.
+     */
+    public File createExtraTempFile(String key) throws IOException {
+        File directory = getExtraFileForKey(key).getParentFile();
+        // The cache may still be initializing in the background and not have created it yet.
+        if (!directory.exists() && !directory.mkdirs() && !directory.exists()) {
+            throw new IOException("Could not create " + directory.getAbsolutePath());
+        }
+        return File.createTempFile(getFilenameForKey(key) + ".", TMP_SUFFIX, directory);
+    }
+
+    /**
+     * Renames a file made by {@link #createExtraTempFile(String)} over the extra file of the
+     * given key. An entry indexed for the key stays marked dirty in the journal until it is
+     * put again, as its header no longer describes the body.
+     *
+     * @return The body now in the extra file.
+     */
+    public FileBody commitExtraFile(String key, File tmp) throws IOException {
+        File extra = getExtraFileForKey(key);
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            CacheHeader entry = segment.entries.get(key);
+            if (entry != null) {
+                mJournal.dirty(key);
+            }
+            if (!tmp.renameTo(extra)) {
+                if (entry != null) {
+                    mJournal.put(entry, true);
+                }
+                throw new IOException("Could not rename " + tmp.getAbsolutePath());
+            }
+            return new FileBody(extra);
+        }
+    }
+
+    /**
+     * Returns the segment the given key belongs to.
+     */
+    private Segment segmentFor(String key) {
+        return mSegments[segmentIndexFor(key)];
+    }
+
+    private int segmentIndexFor(String key) {
+        int h = key.hashCode();
+        // Spread the high bits down, as only the low ones select the segment.
+        h ^= (h >>> 16);
+        return h & (mSegments.length - 1);
+    }
+
+    /**
+     * Prunes the cache to fit the amount of bytes specified, first within the namespace the
+     * bytes go to if that is full, then across namespaces if the cache is.
+     * <p/>
+     * Must not be called with a segment lock held. Each round evicts the victim picked by the
+     * {@link EvictionPolicy} of a namespace, which sees the keys of all segments, taking only
+     * the lock of the victim's segment.
+     *
+     * @param namespace   The namespace the bytes go to.
+     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     */
+    private void pruneIfNeeded(CacheNamespace namespace, int neededSpace) {
+        final long size = mTotalSize.get() + neededSpace;
+        CacheMaintainer maintainer = mMaintainer;
+        if (maintainer != null && size >= mMaxCacheSizeInBytes * HIGH_WATERMARK_FACTOR) {
+            maintainer.requestPrune();
+        }
+        final long namespaceLimit = namespace.getMaxBytes();
+        final boolean namespaceFull = namespace != mDefaultNamespace
+                && namespace.getSize() + neededSpace >= namespaceLimit;
+        if (!namespaceFull && size < mMaxCacheSizeInBytes) {
+            return;
+        }
+        MaintenanceReport report = new MaintenanceReport();
+        long startTime = SystemClock.elapsedRealtime();
+        if (namespaceFull) {
+            prune(namespace, neededSpace, namespaceLimit,
+                    (long) (namespaceLimit * HYSTERESIS_FACTOR), report);
+        }
+        prune(null, neededSpace, mMaxCacheSizeInBytes,
+                (long) (mMaxCacheSizeInBytes * HYSTERESIS_FACTOR), report);
+        if (report.evictedEntries > 0) {
+            final long duration = SystemClock.elapsedRealtime() - startTime;
+            mStats.recordPrune(duration);
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("pruned %d files, %d bytes, %d ms", report.evictedEntries,
+                        report.evictedBytes, duration);
+            }
+        }
+    }
+
+    /**
+     * Evicts entries once the cache plus the needed space reaches the given limit, until it
+     * is below the given target.
+     *
+     * @param namespace The namespace to prune, or null to prune the whole cache, evicting
+     *                  from the namespace furthest over its minimum each round.
+     */
+    private void prune(CacheNamespace namespace, int neededSpace, long limit, long target,
+            MaintenanceReport report) {
+        if ((sizeOf(namespace) + neededSpace) < limit) {
+            return;
+        }
+        synchronized (mPruneLock) {
+            // Another thread may have pruned while we were waiting.
+            if ((sizeOf(namespace) + neededSpace) < limit) {
+                return;
+            }
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Pruning old cache entries from %s.",
+                        namespace != null ? namespace : "all namespaces");
+            }
+
+            while (true) {
+                final CacheNamespace from = namespace != null ? namespace : namespaceToPrune();
+                final String key = from.victim();
+                if (key == null) {
+                    break;
+                }
+                Segment segment = segmentFor(key);
+                synchronized (segment) {
+                    CacheHeader entry = segment.entries.get(key);
+                    if (entry != null && entry.namespace == from) {
+                        report.evictedBytes += evictLocked(segment, key);
+                        report.evictedEntries++;
+                    } else {
+                        // Removed meanwhile; make sure the policy does not offer it again.
+                        from.getEvictionPolicy().onRemove(key);
+                    }
+                }
+
+                if ((sizeOf(namespace) + neededSpace) < target) {
+                    break;
+                }
+            }
+        }
+        compactJournalIfNeeded();
     }
 
     /**
-     * Removes the specified key from the cache if it exists.
+     * Returns the size of the given namespace, or of the whole cache if null.
      */
-    @Override
-    public synchronized void remove(String key) {
-        boolean deleted = getFileForKey(key).delete();
-        CacheHeader entry = removeEntry(key);
-        if (!deleted) {
-            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                    key, getFilenameForKey(key));
-        } else {
-            // delete the extra file.
-            if (!entry.inMemory) {
-                deleted = getExtraFileForKey(key).delete();
-                if (!deleted) {
-                    VolleyLog.d("Could not delete extra cache entry for key=%s, filename=%s",
-                            key, getFilenameForKey(key));
-                }
-            }
-        }
+    private long sizeOf(CacheNamespace namespace) {
+        return namespace != null ? namespace.getSize() : mTotalSize.get();
     }
 
     /**
-     * Creates a pseudo-unique filename for the specified cache key.
-     *
-     * @param key The key to generate a file name for.
-     * @return A pseudo-unique filename.
+     * Returns the namespace to evict from when the cache is full: the one furthest over its
+     * minimum, or the largest one if none is over it.
      */
-    private static String getFilenameForKey(String key) {
-        int firstHalfLength = key.length() / 2;
-        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
-        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
-        return localFilename;
+    private CacheNamespace namespaceToPrune() {
+        CacheNamespace largest = mDefaultNamespace;
+        CacheNamespace furthest = null;
+        long furthestExcess = 0;
+        for (CacheNamespace namespace : mNamespaces) {
+            final long size = namespace.getSize();
+            if (size - namespace.getMinBytes() > furthestExcess) {
+                furthest = namespace;
+                furthestExcess = size - namespace.getMinBytes();
+            }
+            if (size > largest.getSize()) {
+                largest = namespace;
+            }
+        }
+        return furthest != null ? furthest : largest;
     }
 
     /**
-     * Returns a file object for the given cache key.
+     * Returns the namespace an entry with the given key and response headers belongs to.
      */
-    public File getFileForKey(String key) {
-        return new File(mRootDirectory, getFilenameForKey(key));
+    private CacheNamespace namespaceFor(String key, Map<String, String> responseHeaders) {
+        NamespaceClassifier classifier = mNamespaceClassifier;
+        if (classifier == null) {
+            return mDefaultNamespace;
+        }
+        String name = classifier.getNamespace(key, responseHeaders);
+        CacheNamespace namespace = name != null ? mNamespacesByName.get(name) : null;
+        return namespace != null ? namespace : mDefaultNamespace;
     }
 
     /**
-     * Return a extra file object for the given cache key.
+     * Removes the entries whose TTL has passed more than the given grace period ago.
      */
-    public File getExtraFileForKey(String key) {
-        return new File(mExtraDirectory, getFilenameForKey(key));
+    private void sweepExpired(long graceMillis, MaintenanceReport report) {
+        final long deadline = System.currentTimeMillis() - graceMillis;
+        List<CacheHeader> expired = new ArrayList<CacheHeader>();
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                for (CacheHeader entry : segment.entries.values()) {
+                    if (entry.ttl < deadline) {
+                        expired.add(entry);
+                    }
+                }
+                for (CacheHeader entry : expired) {
+                    removeLocked(segment, entry.key);
+                    report.expiredEntries++;
+                    report.expiredBytes += entry.size;
+                }
+            }
+            expired.clear();
+        }
+        compactJournalIfNeeded();
     }
 
     /**
-     * Prunes the cache to fit the amount of bytes specified.
+     * One round of background maintenance. Called on the {@link CacheMaintainer} thread.
      *
-     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     * @param prune       Whether to prune down to the low watermark if past the high one.
+     * @param graceMillis Grace period for expired entries, or -1 not to sweep them.
      */
-    private void pruneIfNeeded(int neededSpace) {
-        if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes) {
+    void runMaintenance(boolean prune, long graceMillis) {
+        MaintenanceReport report = new MaintenanceReport();
+        long startTime = SystemClock.elapsedRealtime();
+        if (graceMillis >= 0) {
+            sweepExpired(graceMillis, report);
+        }
+        if (prune) {
+            prune(null, 0, (long) (mMaxCacheSizeInBytes * HIGH_WATERMARK_FACTOR),
+                    (long) (mMaxCacheSizeInBytes * LOW_WATERMARK_FACTOR), report);
+        }
+        report.durationMillis = SystemClock.elapsedRealtime() - startTime;
+        if (report.evictedEntries > 0) {
+            mStats.recordPrune(report.durationMillis);
+        }
+        if (report.evictedEntries == 0 && report.expiredEntries == 0) {
             return;
         }
         if (VolleyLog.DEBUG) {
-            VolleyLog.v("Pruning old cache entries.");
+            VolleyLog.v("Cache maintenance: %s", report);
         }
+        MaintenanceListener listener = mMaintenanceListener;
+        if (listener != null) {
+            listener.onMaintenance(report);
+        }
+    }
 
-        long before = mTotalSize;
-        int prunedFiles = 0;
-        long startTime = SystemClock.elapsedRealtime();
-
-        Iterator<Map.Entry<String, CacheHeader>> iterator = mEntries.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, CacheHeader> entry = iterator.next();
-            CacheHeader e = entry.getValue();
-            boolean deleted = getFileForKey(e.key).delete();
-            if (deleted) {
-                mTotalSize -= e.size;
-                if (e.inMemory) {
-                    File extra = getExtraFileForKey(e.key);
-                    if (extra != null && extra.exists()) {
-                        extra.delete();
-                    }
+    /**
+     * @return The space freed in bytes.
+     */
+    private long evictLocked(Segment segment, String key) {
+        CacheHeader e = removeEntry(segment, key);
+        mStats.recordEviction();
+        boolean deleted = getFileForKey(e.key).delete();
+        if (deleted) {
+            if (!e.inMemory) {
+                File extra = getExtraFileForKey(e.key);
+                if (extra != null && extra.exists()) {
+                    extra.delete();
                 }
-            } else {
-                VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
-                        e.key, getFilenameForKey(e.key));
             }
-            iterator.remove();
-            prunedFiles++;
+        } else {
+            VolleyLog.d("Could not delete cache entry for key=%s, filename=%s",
+                    e.key, getFilenameForKey(e.key));
+        }
+        if (!segment.loaded) {
+            segment.removedWhileLoading.add(e.key);
+        }
+        mJournal.remove(e.key);
+        return e.size + releaseBlob(e);
+    }
 
-            if ((mTotalSize + neededSpace) < mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
-                break;
-            }
+    /**
+     * Rewrites the journal once it is dominated by records of replaced or removed entries.
+     * Must not be called with a segment lock held. Reads do not check, as the few records they
+     * append, for entries found broken, are compacted along with the next write.
+     */
+    private void compactJournalIfNeeded() {
+        if (mJournal.needsCompaction(mEntryCount.get())) {
+            rewriteJournal();
         }
+    }
 
-        if (VolleyLog.DEBUG) {
-            VolleyLog.v("pruned %d files, %d bytes, %d ms",
-                    prunedFiles, (mTotalSize - before), SystemClock.elapsedRealtime() - startTime);
+    /**
+     * Replaces the journal with a snapshot of all segments, least recently used entries first.
+     * Must not be called with a segment lock held.
+     */
+    private void rewriteJournal() {
+        final int generation = mJournal.beginRewrite();
+        if (generation < 0) {
+            return;
+        }
+        List<CacheHeader> entries = new ArrayList<CacheHeader>(mEntryCount.get());
+        for (Segment segment : mSegments) {
+            synchronized (segment) {
+                entries.addAll(segment.entries.values());
+            }
         }
+        // Replayed in this order, the journal restores the recency of the entries.
+        Collections.sort(entries, new Comparator<CacheHeader>() {
+            @Override
+            public int compare(CacheHeader lhs, CacheHeader rhs) {
+                return lhs.accessTime < rhs.accessTime ? -1
+                        : (lhs.accessTime == rhs.accessTime ? 0 : 1);
+            }
+        });
+        mJournal.rewrite(entries, generation);
     }
 
     /**
-     * Puts the entry with the specified key into the cache.
+     * Puts the entry with the specified key into the given segment.
      *
      * @param key   The key to identify the entry by.
      * @param entry The entry to cache.
      */
-    private void putEntry(String key, CacheHeader entry) {
-        if (!mEntries.containsKey(key)) {
-            mTotalSize += entry.size;
+    private void putEntry(Segment segment, String key, CacheHeader entry) {
+        if (entry.namespace == null) {
+            entry.namespace = namespaceFor(key, entry.responseHeaders);
+        }
+        CacheHeader oldEntry = segment.entries.put(key, entry);
+        long delta = entry.size;
+        if (oldEntry != null) {
+            delta -= oldEntry.size;
         } else {
-            CacheHeader oldEntry = mEntries.get(key);
-            mTotalSize += (entry.size - oldEntry.size);
+            mEntryCount.incrementAndGet();
+        }
+        segment.size += delta;
+        mTotalSize.addAndGet(delta);
+        if (oldEntry != null && oldEntry.namespace != entry.namespace) {
+            // New response headers moved the entry to another namespace.
+            oldEntry.namespace.onRemove(key, oldEntry.size);
+            entry.namespace.onInsert(key, entry.size, 0);
+        } else {
+            entry.namespace.onInsert(key, entry.size, oldEntry != null ? oldEntry.size : 0);
+        }
+        // Take the new reference first, the old entry may well share the blob.
+        if (entry.blobDigest != null) {
+            mTotalSize.addAndGet(mBlobStore.retain(entry.blobDigest, entry.blobLength,
+                    entry.namespace));
+        }
+        if (oldEntry != null) {
+            releaseBlob(oldEntry);
         }
-        mEntries.put(key, entry);
     }
 
     /**
-     * Removes the entry identified by 'key' from the cache.
+     * Removes the entry identified by 'key' from the given segment. The caller releases its
+     * blob with {@link #releaseBlob(CacheHeader)}.
      */
-    private CacheHeader removeEntry(String key) {
-        CacheHeader entry = mEntries.get(key);
+    private CacheHeader removeEntry(Segment segment, String key) {
+        CacheHeader entry = segment.entries.remove(key);
         if (entry != null) {
-            mTotalSize -= entry.size;
-            mEntries.remove(key);
+            segment.size -= entry.size;
+            mTotalSize.addAndGet(-entry.size);
+            mEntryCount.decrementAndGet();
+            entry.namespace.onRemove(key, entry.size);
         }
         return entry;
     }
 
+    /**
+     * Drops the reference of a removed entry to its blob, if any.
+     *
+     * @return The space freed in bytes.
+     */
+    private long releaseBlob(CacheHeader entry) {
+        if (entry.blobDigest == null) {
+            return 0;
+        }
+        final long freed = mBlobStore.release(entry.blobDigest, entry.namespace);
+        mTotalSize.addAndGet(-freed);
+        return freed;
+    }
+
+    /**
+     * Thrown when a cache file holds the entry of another key than the one looked up.
+     */
+    @SuppressWarnings("serial")
+    private static class KeyMismatchException extends IOException {
+        KeyMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Tells which {@link CacheNamespace} an entry belongs to.
+     */
+    public interface NamespaceClassifier {
+        /**
+         * Returns the name of the namespace of the entry with the given key and response
+         * headers, or null for the default one. Entries are classified again whenever the
+         * cache loads, so this must only depend on its arguments.
+         */
+        String getNamespace(String key, Map<String, String> responseHeaders);
+    }
+
+    /**
+     * Callback interface for background maintenance.
+     */
+    public interface MaintenanceListener {
+        /**
+         * Called on the maintenance thread after a round which reclaimed anything.
+         */
+        void onMaintenance(MaintenanceReport report);
+    }
+
+    /**
+     * What a maintenance round reclaimed.
+     */
+    public static class MaintenanceReport {
+        /** Entries evicted to bring the cache down to its low watermark. */
+        public int evictedEntries;
+        /** Space freed by evicted entries in bytes. */
+        public long evictedBytes;
+        /** Entries removed for having expired. */
+        public int expiredEntries;
+        /** Space freed by expired entries in bytes. */
+        public long expiredBytes;
+        /** Time the round took. */
+        public long durationMillis;
+
+        @Override
+        public String toString() {
+            return "evicted " + evictedEntries + " entries (" + evictedBytes + " bytes), expired "
+                    + expiredEntries + " entries (" + expiredBytes + " bytes) in "
+                    + durationMillis + " ms";
+        }
+    }
+
+    /**
+     * A partition of the cache index with its own lock, which is the segment itself.
+     */
+    private static class Segment {
+        /**
+         * Map of the Key, CacheHeader pairs, in insertion order. Recency is kept by the eviction
+         * policies and {@link CacheHeader#accessTime}, not by this map.
+         */
+        final Map<String, CacheHeader> entries = new LinkedHashMap<String, CacheHeader>();
+
+        /**
+         * Space used by the entries of this segment in bytes.
+         */
+        long size;
+
+        /**
+         * Whether the entries of this segment have been loaded by {@link #initialize()}.
+         */
+        boolean loaded;
+
+        /**
+         * Keys removed before this segment was loaded, which the load must not bring back.
+         */
+        final Set<String> removedWhileLoading = new HashSet<String>();
+
+        /**
+         * Entries read from their own file before this segment was loaded, and not replaced
+         * since; the load swaps them for their journal records.
+         */
+        final Map<String, CacheHeader> probedWhileLoading = new HashMap<String, CacheHeader>();
+    }
+
     /**
      * Reads the contents of an InputStream into a byte[].
      */
@@ -441,11 +2747,61 @@ public class DiskBasedCache implements Cache {
         public boolean inMemory;
 
         /**
-         * The size of the data identified by this CacheHeader. (This is not
-         * serialized to disk. If inMemory is false, this has no sense.
+         * The size on disk of the data identified by this CacheHeader, extra file included.
+         * (This is not serialized to the cache file, only to the journal.)
          */
         public long size;
 
+        /**
+         * Tick of the last access, to compare recency across segments.
+         * (This is not serialized.)
+         */
+        transient long accessTime;
+
+        /**
+         * Namespace the entry is accounted in, set once indexed.
+         * (This is not serialized.)
+         */
+        transient CacheNamespace namespace;
+
+        /**
+         * Offset of the body within the cache file, that is the length of the header.
+         * (This is not serialized to the cache file, only to the journal.)
+         */
+        public long bodyOffset;
+
+        /**
+         * Format version of the cache file, older ones get migrated when next read.
+         * (This is not serialized to the cache file, only to the journal.)
+         */
+        public int version;
+
+        /**
+         * Whether the body is stored deflated.
+         */
+        public boolean deflated;
+
+        /**
+         * Length of the body once inflated, if deflated.
+         */
+        public int rawLength;
+
+        /**
+         * Digest of the shared blob holding the body, or null if the body follows the header.
+         */
+        public String blobDigest;
+
+        /**
+         * Length of the blob, as stored.
+         */
+        public long blobLength;
+
+        /**
+         * CRC32 of the body as returned to callers, or -1 if there is none: the entry is not
+         * kept in memory or was written before checksums.
+         */
+        public long bodyCrc = -1;
+
         /**
          * The key that identifies the cache entry.
          */
@@ -492,6 +2848,7 @@ public class DiskBasedCache implements Cache {
          */
         public CacheHeader(String key, Entry entry) {
             this.key = key;
+            this.version = CACHE_VERSION;
             this.inMemory = entry.inMemory;
             this.size = entry.data.length;
             this.etag = entry.etag;
@@ -508,12 +2865,94 @@ public class DiskBasedCache implements Cache {
          * @param is The InputStream to read from.
          */
         public static CacheHeader readHeader(InputStream is) throws IOException {
-            CacheHeader entry = new CacheHeader();
             int magic = readInt(is);
-            if (magic != CACHE_MAGIC) {
-                // don't bother deleting, it'll get pruned eventually
-                throw new IOException();
+            if (magic == CACHE_MAGIC) {
+                return readHeaderV2(is);
+            } else if (magic == CACHE_MAGIC_V1) {
+                return readHeaderV1(is);
+            }
+            // don't bother deleting, it'll get pruned eventually
+            throw new IOException();
+        }
+
+        /**
+         * Reads the rest of a v2 header with two bulk reads, one for the fixed prefix and
+         * one for the variable part whose length the prefix holds.
+         */
+        private static CacheHeader readHeaderV2(InputStream is) throws IOException {
+            CacheHeader entry = new CacheHeader();
+            entry.version = CACHE_VERSION;
+            byte[] prefix = sHeaderPool.getBuf(HEADER_PREFIX_SIZE);
+            byte[] buffer = null;
+            try {
+                readFully(is, prefix, HEADER_PREFIX_SIZE);
+                final int length = getInt(prefix, 0);
+                if (length < 0 || length > MAX_HEADER_SIZE) {
+                    throw new IOException("Bad header length " + length);
+                }
+                entry.ttl = getLong(prefix, 4);
+                entry.softTtl = getLong(prefix, 12);
+                buffer = sHeaderPool.getBuf(length);
+                readFully(is, buffer, length);
+
+                HeaderParser parser = new HeaderParser(buffer, length);
+                final int flags = parser.readVarInt();
+                if ((flags & FLAG_CHECKSUM) != 0) {
+                    // The payload ends with a CRC32 of the rest of it and of the prefix.
+                    if (length < 4) {
+                        throw new IOException("Bad header length " + length);
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update(buffer, 0, length - 4);
+                    crc.update(prefix, 0, HEADER_PREFIX_SIZE);
+                    if ((int) crc.getValue() != getInt(buffer, length - 4)) {
+                        throw new IOException("Bad header checksum");
+                    }
+                }
+                entry.inMemory = (flags & FLAG_IN_MEMORY) != 0;
+                if ((flags & FLAG_DEFLATED) != 0) {
+                    entry.deflated = true;
+                    entry.rawLength = parser.readVarInt();
+                }
+                if ((flags & FLAG_BLOB) != 0) {
+                    entry.blobDigest = parser.readString();
+                    entry.blobLength = parser.readVarLong();
+                }
+                if ((flags & FLAG_BODY_CHECKSUM) != 0) {
+                    entry.bodyCrc = parser.readVarLong();
+                }
+                entry.key = parser.readString();
+                entry.etag = parser.readString();
+                if (entry.etag.equals("")) {
+                    entry.etag = null;
+                }
+                entry.serverDate = parser.readVarLong();
+                entry.lastModified = parser.readVarLong();
+                final int size = parser.readVarInt();
+                entry.responseHeaders = (size == 0)
+                        ? Collections.<String, String>emptyMap()
+                        : new HashMap<String, String>(size);
+                for (int i = 0; i < size; i++) {
+                    // 0 introduces a literal name, anything else is a dictionary index + 1.
+                    final int name = parser.readVarInt();
+                    if (name > HEADER_NAMES.length) {
+                        throw new IOException("Bad header name " + name);
+                    }
+                    String key = name == 0 ? parser.readString() : HEADER_NAMES[name - 1];
+                    entry.responseHeaders.put(key, parser.readString());
+                }
+                return entry;
+            } finally {
+                sHeaderPool.returnBuf(prefix);
+                if (buffer != null) {
+                    sHeaderPool.returnBuf(buffer);
+                }
             }
+        }
+
+        private static CacheHeader readHeaderV1(InputStream is) throws IOException {
+            CacheHeader entry = new CacheHeader();
+            entry.version = 1;
             entry.key = readString(is);
             // 0 equals false, otherwise is true.
             entry.inMemory = readInt(is) != 0;
@@ -551,15 +2990,7 @@ public class DiskBasedCache implements Cache {
          */
         public boolean writeHeader(OutputStream os) {
             try {
-                writeInt(os, CACHE_MAGIC);
-                writeString(os, key);
-                writeInt(os, inMemory ? 1 : 0);
-                writeString(os, etag == null ? "" : etag);
-                writeLong(os, serverDate);
-                writeLong(os, lastModified);
-                writeLong(os, ttl);
-                writeLong(os, softTtl);
-                writeStringStringMap(responseHeaders, os);
+                writeFields(os);
                 os.flush();
                 return true;
             } catch (IOException e) {
@@ -568,12 +2999,168 @@ public class DiskBasedCache implements Cache {
             }
         }
 
+        /**
+         * Writes the contents of this CacheHeader without flushing, as done both for cache
+         * files and journal records. The variable part is built in a pooled buffer first, so
+         * that its length can be written ahead of it.
+         */
+        void writeFields(OutputStream os) throws IOException {
+            PoolingByteArrayOutputStream payload = new PoolingByteArrayOutputStream(sHeaderPool);
+            try {
+                CRC32 crc = new CRC32();
+                OutputStream checked = new CheckedOutputStream(payload, crc);
+                writeVarLong(checked, (inMemory ? FLAG_IN_MEMORY : 0)
+                        | (deflated ? FLAG_DEFLATED : 0)
+                        | (blobDigest != null ? FLAG_BLOB : 0) | FLAG_CHECKSUM
+                        | (bodyCrc >= 0 ? FLAG_BODY_CHECKSUM : 0));
+                if (deflated) {
+                    writeVarLong(checked, rawLength);
+                }
+                if (blobDigest != null) {
+                    writeVarString(checked, blobDigest);
+                    writeVarLong(checked, blobLength);
+                }
+                if (bodyCrc >= 0) {
+                    writeVarLong(checked, bodyCrc);
+                }
+                writeVarString(checked, key);
+                writeVarString(checked, etag == null ? "" : etag);
+                writeVarLong(checked, serverDate);
+                writeVarLong(checked, lastModified);
+                if (responseHeaders != null) {
+                    writeVarLong(checked, responseHeaders.size());
+                    for (Map.Entry<String, String> header : responseHeaders.entrySet()) {
+                        Integer name = HEADER_NAME_INDEX.get(header.getKey());
+                        if (name != null) {
+                            writeVarLong(checked, name + 1);
+                        } else {
+                            writeVarLong(checked, 0);
+                            writeVarString(checked, header.getKey());
+                        }
+                        writeVarString(checked, header.getValue());
+                    }
+                } else {
+                    writeVarLong(checked, 0);
+                }
+                byte[] prefix = new byte[4 + HEADER_PREFIX_SIZE];
+                putInt(prefix, 0, CACHE_MAGIC);
+                putInt(prefix, 4, payload.size() + 4);
+                putLong(prefix, 8, ttl);
+                putLong(prefix, 16, softTtl);
+                crc.update(prefix, 4, HEADER_PREFIX_SIZE);
+                os.write(prefix);
+                payload.writeTo(os);
+                writeInt(os, (int) crc.getValue());
+            } finally {
+                payload.close();
+            }
+        }
+
+    }
+
+    /**
+     * Cursor over a header read into a buffer.
+     */
+    private static class HeaderParser {
+        private final byte[] mBuffer;
+        private final int mLimit;
+        private int mPosition;
+
+        HeaderParser(byte[] buffer, int limit) {
+            this(buffer, 0, limit);
+        }
+
+        HeaderParser(byte[] buffer, int position, int limit) {
+            mBuffer = buffer;
+            mPosition = position;
+            mLimit = limit;
+        }
+
+        long readVarLong() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (mPosition >= mLimit) {
+                    throw new EOFException();
+                }
+                final byte b = mBuffer[mPosition++];
+                result |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        int readVarInt() throws IOException {
+            final long n = readVarLong();
+            if (n < 0 || n > Integer.MAX_VALUE) {
+                throw new IOException("Bad length " + n);
+            }
+            return (int) n;
+        }
+
+        String readString() throws IOException {
+            final int length = readVarInt();
+            if (length > mLimit - mPosition) {
+                throw new EOFException();
+            }
+            String s = new String(mBuffer, mPosition, length, "UTF-8");
+            mPosition += length;
+            return s;
+        }
+
+        void skipString() throws IOException {
+            final int length = readVarInt();
+            if (length > mLimit - mPosition) {
+                throw new EOFException();
+            }
+            mPosition += length;
+        }
+
+        /**
+         * Returns whether the next string holds the given bytes, without decoding it.
+         */
+        boolean matchString(byte[] expected) throws IOException {
+            return matchBytes(readVarInt(), expected);
+        }
+
+        /**
+         * Like {@link #matchString(byte[])}, for a string with the fixed-size length of the v1
+         * format.
+         */
+        boolean matchV1String(byte[] expected) throws IOException {
+            if (mLimit - mPosition < 8) {
+                throw new EOFException();
+            }
+            final long length = getLong(mBuffer, mPosition);
+            mPosition += 8;
+            if (length < 0 || length > Integer.MAX_VALUE) {
+                throw new IOException("Bad length " + length);
+            }
+            return matchBytes((int) length, expected);
+        }
+
+        private boolean matchBytes(int length, byte[] expected) throws IOException {
+            if (length > mLimit - mPosition) {
+                throw new EOFException();
+            }
+            if (length != expected.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (mBuffer[mPosition + i] != expected[i]) {
+                    return false;
+                }
+            }
+            mPosition += length;
+            return true;
+        }
     }
 
-    private static class CountingInputStream extends FilterInputStream {
-        private int bytesRead = 0;
+    static class CountingInputStream extends FilterInputStream {
+        int bytesRead = 0;
 
-        private CountingInputStream(InputStream in) {
+        CountingInputStream(InputStream in) {
             super(in);
         }
 
@@ -679,6 +3266,57 @@ public class DiskBasedCache implements Cache {
         }
     }
 
+    /**
+     * Writes an unsigned LEB128 varint; negative values take the full ten bytes.
+     */
+    static void writeVarLong(OutputStream os, long n) throws IOException {
+        while ((n & ~0x7fL) != 0) {
+            os.write((int) ((n & 0x7f) | 0x80));
+            n >>>= 7;
+        }
+        os.write((int) n);
+    }
+
+    static void writeVarString(OutputStream os, String s) throws IOException {
+        byte[] b = s.getBytes("UTF-8");
+        writeVarLong(os, b.length);
+        os.write(b, 0, b.length);
+    }
+
+    private static void readFully(InputStream is, byte[] buffer, int length) throws IOException {
+        int pos = 0;
+        int count;
+        while (pos < length && (count = is.read(buffer, pos, length - pos)) != -1) {
+            pos += count;
+        }
+        if (pos != length) {
+            throw new EOFException();
+        }
+    }
+
+    static void putInt(byte[] b, int offset, int n) {
+        b[offset] = (byte) n;
+        b[offset + 1] = (byte) (n >>> 8);
+        b[offset + 2] = (byte) (n >>> 16);
+        b[offset + 3] = (byte) (n >>> 24);
+    }
+
+    static int getInt(byte[] b, int offset) {
+        return (b[offset] & 0xff)
+                | (b[offset + 1] & 0xff) << 8
+                | (b[offset + 2] & 0xff) << 16
+                | (b[offset + 3] & 0xff) << 24;
+    }
+
+    static void putLong(byte[] b, int offset, long n) {
+        putInt(b, offset, (int) n);
+        putInt(b, offset + 4, (int) (n >>> 32));
+    }
+
+    static long getLong(byte[] b, int offset) {
+        return (getInt(b, offset) & 0xffffffffL) | ((long) getInt(b, offset + 4) << 32);
+    }
+
     static Map<String, String> readStringStringMap(InputStream is) throws IOException {
         int size = readInt(is);
         Map<String, String> result = (size == 0)
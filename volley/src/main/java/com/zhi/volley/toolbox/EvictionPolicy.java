@@ -0,0 +1,61 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhi.volley.toolbox;
+
+/**
+ * Decides which entry a {@link DiskBasedCache} evicts when it runs out of space.
+ * <p/>
+ * The cache reports every key it inserts, reads and removes, and asks for a victim while it
+ * is over its size limit. Calls come from several threads, so implementations synchronize
+ * themselves. They only track keys; the cache does the actual removal and then reports it
+ * through {@link #onRemove(String)}.
+ */
+public interface EvictionPolicy {
+    /**
+     * Tells the policy how many bytes the cache may hold. Called once, before any key is
+     * reported.
+     */
+    void setMaximumWeight(long maximumWeight);
+
+    /**
+     * Records that an entry has been added, or replaced if the key is already tracked.
+     *
+     * @param key    Cache key
+     * @param weight Size of the entry in bytes
+     */
+    void onInsert(String key, long weight);
+
+    /**
+     * Records a read of a tracked entry.
+     */
+    void onAccess(String key);
+
+    /**
+     * Records that an entry has left the cache, evicted or not.
+     */
+    void onRemove(String key);
+
+    /**
+     * Returns the key of the entry to evict next, or null if no key is tracked.
+     */
+    String victim();
+
+    /**
+     * Forgets all keys, as the cache has been cleared.
+     */
+    void clear();
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhi.volley.toolbox;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Evicts the least recently used entry. This is what {@link DiskBasedCache} uses by default.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+    /**
+     * Tracked keys, in access order.
+     */
+    private final LinkedHashMap<String, Boolean> mKeys =
+            new LinkedHashMap<String, Boolean>(16, .75f, true);
+
+    @Override
+    public void setMaximumWeight(long maximumWeight) {
+    }
+
+    @Override
+    public synchronized void onInsert(String key, long weight) {
+        mKeys.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public synchronized void onAccess(String key) {
+        mKeys.get(key);
+    }
+
+    @Override
+    public synchronized void onRemove(String key) {
+        mKeys.remove(key);
+    }
+
+    @Override
+    public synchronized String victim() {
+        Iterator<String> iterator = mKeys.keySet().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    @Override
+    public synchronized void clear() {
+        mKeys.clear();
+    }
+}
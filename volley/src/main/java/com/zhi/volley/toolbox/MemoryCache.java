@@ -0,0 +1,266 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhi.volley.toolbox;
+
+import com.zhi.volley.Cache;
+import com.zhi.volley.CacheStats;
+
+import android.util.LruCache;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory tier in front of another {@link Cache}, holding its small entries so that hot
+ * small responses, such as a config endpoint polled every few seconds, are served without
+ * any file I/O.
+ * <p/>
+ * Only entries kept in memory with data up to a size threshold are held, bounded by their
+ * total size in bytes. Every change goes through to the underlying cache, so both tiers
+ * stay consistent. Entries are shared with callers, who must not modify them.
+ * <p/>
+ * {@link #getStats()} reports lookups as callers see them, whichever tier served them, and
+ * evictions from memory; the underlying cache reports its own.
+ */
+public class MemoryCache implements Cache {
+    /**
+     * Default size of the largest entry data held.
+     */
+    private static final int DEFAULT_MAX_ENTRY_SIZE = 16 * 1024;
+
+    /**
+     * Rough per-entry overhead counted on top of the data, for the entry, its key and map
+     * nodes.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final Cache mCache;
+    private final int mMaxEntrySize;
+    private final LruCache<String, Entry> mEntries;
+
+    /**
+     * Incremented by every change, so that an entry read from the underlying cache while
+     * another thread changes it is not held over the change.
+     */
+    private final AtomicLong mModCount = new AtomicLong();
+
+    /**
+     * Number of puts writing to the underlying cache. Entries are only held while there is
+     * none, as concurrent puts of a key may reach the two tiers in different orders.
+     */
+    private final AtomicInteger mPutsInFlight = new AtomicInteger();
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final CacheStats.Counter mStats = new CacheStats.Counter();
+
+    /**
+     * @param cache        The cache to hold the small entries of.
+     * @param maxSizeBytes The maximum size of the entries held, in bytes.
+     * @param maxEntrySize The size of the largest entry data to hold, in bytes.
+     */
+    public MemoryCache(Cache cache, int maxSizeBytes, int maxEntrySize) {
+        if (cache == null) {
+            throw new IllegalArgumentException("cache must not be null");
+        }
+        mCache = cache;
+        mMaxEntrySize = maxEntrySize;
+        mEntries = new LruCache<String, Entry>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return estimateSize(key, value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Entry oldValue,
+                    Entry newValue) {
+                if (evicted) {
+                    mStats.recordEviction();
+                }
+            }
+        };
+    }
+
+    /**
+     * @param cache        The cache to hold the small entries of.
+     * @param maxSizeBytes The maximum size of the entries held, in bytes.
+     */
+    public MemoryCache(Cache cache, int maxSizeBytes) {
+        this(cache, maxSizeBytes, DEFAULT_MAX_ENTRY_SIZE);
+    }
+
+    /**
+     * Returns the underlying cache.
+     */
+    public Cache getCache() {
+        return mCache;
+    }
+
+    @Override
+    public Entry get(String key) {
+        final long startTime = System.nanoTime();
+        Entry entry = mEntries.get(key);
+        if (entry != null) {
+            mHitCount.incrementAndGet();
+            mStats.recordLookup(entry, System.nanoTime() - startTime);
+            return entry;
+        }
+        mMissCount.incrementAndGet();
+        // Read before the puts in flight: a put starting in between changes mModCount.
+        final long modCount = mModCount.get();
+        final boolean putInFlight = mPutsInFlight.get() > 0;
+        entry = mCache.get(key);
+        if (entry != null && isHeld(entry) && !putInFlight) {
+            synchronized (this) {
+                // Drop it if the key may have changed meanwhile; the next get loads it again.
+                if (modCount == mModCount.get()) {
+                    mEntries.put(key, entry);
+                }
+            }
+        }
+        mStats.recordLookup(entry, System.nanoTime() - startTime);
+        return entry;
+    }
+
+    /**
+     * Puts the entry through to the underlying cache, then holds it if small enough. The old
+     * entry is dropped from memory first, and the new one only held if no other change
+     * started meanwhile, so that memory never keeps an entry the underlying cache replaced.
+     */
+    @Override
+    public void put(String key, Entry entry) {
+        final long modCount;
+        synchronized (this) {
+            mPutsInFlight.incrementAndGet();
+            modCount = mModCount.incrementAndGet();
+            mEntries.remove(key);
+        }
+        boolean written = false;
+        try {
+            mCache.put(key, entry);
+            written = true;
+        } finally {
+            synchronized (this) {
+                final boolean alone = mPutsInFlight.decrementAndGet() == 0
+                        && modCount == mModCount.get();
+                mModCount.incrementAndGet();
+                if (written && alone && isHeld(entry)) {
+                    mEntries.put(key, entry);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void updateMetadata(String key, Entry entry) {
+        mCache.updateMetadata(key, entry);
+        drop(key);
+    }
+
+    @Override
+    public void initialize() {
+        mCache.initialize();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        mCache.invalidate(key, fullExpire);
+        drop(key);
+    }
+
+    @Override
+    public void remove(String key) {
+        mCache.remove(key);
+        drop(key);
+    }
+
+    @Override
+    public void clear() {
+        mCache.clear();
+        synchronized (this) {
+            mModCount.incrementAndGet();
+            mEntries.evictAll();
+        }
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return mStats.snapshot();
+    }
+
+    /**
+     * Resets the figures of this tier only.
+     */
+    @Override
+    public void resetStats() {
+        mStats.reset();
+    }
+
+    /**
+     * Returns the number of lookups served from memory.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Returns the number of lookups passed on to the underlying cache.
+     */
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Returns the estimated size of the entries held, in bytes.
+     */
+    public int getSize() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the maximum size of the entries held, in bytes.
+     */
+    public int getMaxSize() {
+        return mEntries.maxSize();
+    }
+
+    /**
+     * Forgets the entry for the given key, which the underlying cache changed.
+     */
+    private synchronized void drop(String key) {
+        mModCount.incrementAndGet();
+        mEntries.remove(key);
+    }
+
+    private boolean isHeld(Entry entry) {
+        return entry.inMemory && entry.data != null && entry.data.length <= mMaxEntrySize;
+    }
+
+    private static int estimateSize(String key, Entry entry) {
+        int size = ENTRY_OVERHEAD + key.length() * 2 + entry.data.length;
+        if (entry.etag != null) {
+            size += entry.etag.length() * 2;
+        }
+        if (entry.responseHeaders != null) {
+            for (Map.Entry<String, String> header : entry.responseHeaders.entrySet()) {
+                size += (header.getKey().length() + header.getValue().length()) * 2;
+            }
+        }
+        return size;
+    }
+}
@@ -17,6 +17,7 @@
 package com.zhi.volley.toolbox;
 
 import com.zhi.volley.Cache;
+import com.zhi.volley.CacheStats;
 
 /**
  * A cache that doesn't.
@@ -35,6 +36,10 @@ public class NoCache implements Cache {
     public void put(String key, Entry entry) {
     }
 
+    @Override
+    public void updateMetadata(String key, Entry entry) {
+    }
+
     @Override
     public void invalidate(String key, boolean fullExpire) {
     }
@@ -46,4 +51,13 @@ public class NoCache implements Cache {
     @Override
     public void initialize() {
     }
+
+    @Override
+    public CacheStats getStats() {
+        return CacheStats.EMPTY;
+    }
+
+    @Override
+    public void resetStats() {
+    }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.zhi.volley.toolbox;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * W-TinyLFU eviction: keeps entries which are used often over entries which were merely
+ * used last, so that one pass over many new entries does not flush the hot ones.
+ * <p/>
+ * New entries go to a small LRU window, 1% of the cache. Entries leaving the window become
+ * candidates for the main region, and get admitted only if a {@link FrequencySketch} has
+ * seen them more often than the entry they would push out. The main region is a segmented
+ * LRU: entries start on probation and are promoted to the protected part, 80% of the main
+ * region, when read again.
+ */
+public class TinyLfuEvictionPolicy implements EvictionPolicy {
+    private static final float WINDOW_RATIO = 0.01f;
+    private static final float PROTECTED_RATIO = 0.8f;
+    private static final int INITIAL_SKETCH_CAPACITY = 256;
+
+    private final Region mWindow = new Region();
+    private final Region mCandidates = new Region();
+    private final Region mProbation = new Region();
+    private final Region mProtected = new Region();
+
+    private final Map<String, Node> mNodes = new HashMap<String, Node>();
+    private final FrequencySketch mSketch = new FrequencySketch();
+    private int mSketchCapacity = INITIAL_SKETCH_CAPACITY;
+
+    private long mWindowMaximum = 1;
+    private long mProtectedMaximum = 1;
+
+    public TinyLfuEvictionPolicy() {
+        mSketch.ensureCapacity(mSketchCapacity);
+    }
+
+    @Override
+    public synchronized void setMaximumWeight(long maximumWeight) {
+        mWindowMaximum = Math.max(1, (long) (maximumWeight * WINDOW_RATIO));
+        mProtectedMaximum = Math.max(1, (long) ((maximumWeight - mWindowMaximum)
+                * PROTECTED_RATIO));
+    }
+
+    @Override
+    public synchronized void onInsert(String key, long weight) {
+        mSketch.increment(key);
+        Node node = mNodes.get(key);
+        if (node != null) {
+            node.region.weight += weight - node.weight;
+            node.weight = weight;
+            node.region.nodes.get(key);
+            return;
+        }
+
+        node = new Node(key, weight);
+        mNodes.put(key, node);
+        mWindow.add(node);
+        if (mNodes.size() > mSketchCapacity) {
+            mSketchCapacity <<= 1;
+            mSketch.ensureCapacity(mSketchCapacity);
+        }
+        // Entries leaving the window have to earn their place in the main region.
+        while (mWindow.weight > mWindowMaximum && mWindow.nodes.size() > 1) {
+            mCandidates.add(mWindow.remove(mWindow.eldest()));
+        }
+    }
+
+    @Override
+    public synchronized void onAccess(String key) {
+        mSketch.increment(key);
+        Node node = mNodes.get(key);
+        if (node == null) {
+            return;
+        }
+        if (node.region == mProbation || node.region == mCandidates) {
+            mProtected.add(node.region.remove(node));
+            // Make room in the protected region by putting its eldest back on probation.
+            while (mProtected.weight > mProtectedMaximum && mProtected.nodes.size() > 1) {
+                mProbation.add(mProtected.remove(mProtected.eldest()));
+            }
+        } else {
+            node.region.nodes.get(key);
+        }
+    }
+
+    @Override
+    public synchronized void onRemove(String key) {
+        Node node = mNodes.remove(key);
+        if (node != null) {
+            node.region.remove(node);
+        }
+    }
+
+    @Override
+    public synchronized String victim() {
+        while (true) {
+            Node candidate = mCandidates.eldest();
+            Node victim = mProbation.eldest();
+            if (victim == null) {
+                victim = mProtected.eldest();
+            }
+            if (candidate == null) {
+                if (victim == null) {
+                    victim = mWindow.eldest();
+                }
+                return victim != null ? victim.key : null;
+            }
+            if (victim == null) {
+                // Nothing to compete with, the main region is empty.
+                mProbation.add(mCandidates.remove(candidate));
+                continue;
+            }
+            if (mSketch.frequency(candidate.key) > mSketch.frequency(victim.key)) {
+                mProbation.add(mCandidates.remove(candidate));
+                return victim.key;
+            }
+            return candidate.key;
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        mNodes.clear();
+        mWindow.clear();
+        mCandidates.clear();
+        mProbation.clear();
+        mProtected.clear();
+    }
+
+    private static class Node {
+        final String key;
+        long weight;
+        Region region;
+
+        Node(String key, long weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Nodes of one region in access order, with their total weight.
+     */
+    private static class Region {
+        final LinkedHashMap<String, Node> nodes = new LinkedHashMap<String, Node>(16, .75f, true);
+        long weight;
+
+        void add(Node node) {
+            node.region = this;
+            nodes.put(node.key, node);
+            weight += node.weight;
+        }
+
+        Node remove(Node node) {
+            nodes.remove(node.key);
+            weight -= node.weight;
+            return node;
+        }
+
+        Node eldest() {
+            Iterator<Node> iterator = nodes.values().iterator();
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+
+        void clear() {
+            nodes.clear();
+            weight = 0;
+        }
+    }
+}
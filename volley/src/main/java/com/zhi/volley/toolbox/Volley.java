@@ -37,12 +37,15 @@ public class Volley {
     /**
      * Creates a default instance of the worker pool and calls {@link RequestQueue#start()} on it.
      *
-     * @param context A {@link android.content.Context} to use for creating the cache dir.
-     * @param stack   An {@link HttpStack} to use for the network, or null for default.
-     * @param cache   A {@link DiskBasedCache} to used for the network, or null for default.
+     * @param context          A {@link android.content.Context} to use for creating the cache dir.
+     * @param stack            An {@link HttpStack} to use for the network, or null for default.
+     * @param cache            A {@link DiskBasedCache} to used for the network, or null for default.
+     * @param memoryCacheBytes Size of a {@link MemoryCache} holding small responses in front of
+     *                         the disk cache, or 0 for none.
      * @return A started {@link RequestQueue} instance.
      */
-    public static RequestQueue newRequestQueue(Context context, HttpStack stack, DiskBasedCache cache) {
+    public static RequestQueue newRequestQueue(Context context, HttpStack stack, DiskBasedCache cache,
+            int memoryCacheBytes) {
         String userAgent = "volley/0";
         try {
             String packageName = context.getPackageName();
@@ -66,13 +69,28 @@ public class Volley {
             cache = new DiskBasedCache(cacheDir);
         }
 
+        // The network only asks the disk cache where extra files go, never for entries, so it
+        // cannot see the memory tier diverge.
         Network network = new BasicNetwork(stack, cache);
-        RequestQueue queue = new RequestQueue(cache, network);
+        RequestQueue queue = new RequestQueue(
+                memoryCacheBytes > 0 ? new MemoryCache(cache, memoryCacheBytes) : cache, network);
         queue.start();
 
         return queue;
     }
 
+    /**
+     * Creates a default instance of the worker pool and calls {@link RequestQueue#start()} on it.
+     *
+     * @param context A {@link android.content.Context} to use for creating the cache dir.
+     * @param stack   An {@link HttpStack} to use for the network, or null for default.
+     * @param cache   A {@link DiskBasedCache} to used for the network, or null for default.
+     * @return A started {@link RequestQueue} instance.
+     */
+    public static RequestQueue newRequestQueue(Context context, HttpStack stack, DiskBasedCache cache) {
+        return newRequestQueue(context, stack, cache, 0);
+    }
+
     /**
      * Creates a default instance of the worker pool and calls {@link RequestQueue#start()} on it.
      *
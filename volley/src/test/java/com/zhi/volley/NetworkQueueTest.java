@@ -0,0 +1,214 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zhi.volley;
+
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class NetworkQueueTest {
+    private static final int HOST_A = 1;
+    private static final int HOST_B = 2;
+    private static final int HOST_C = 3;
+
+    private NetworkQueue mQueue;
+    private int mSequence;
+
+    @Before
+    public void setUp() {
+        mQueue = new NetworkQueue(2);
+        // Aging is tested on its own, with queued times set explicitly.
+        mQueue.setAgingInterval(0);
+    }
+
+    @Test
+    public void hostLimitHoldsRequestsBack() {
+        Request<?> first = offer(HOST_A, Request.Priority.NORMAL);
+        Request<?> second = offer(HOST_A, Request.Priority.NORMAL);
+        Request<?> third = offer(HOST_A, Request.Priority.NORMAL);
+
+        assertSame(first, mQueue.poll());
+        assertSame(second, mQueue.poll());
+        assertNull(mQueue.poll());
+        assertEquals(1, mQueue.size());
+
+        mQueue.release(first);
+        assertSame(third, mQueue.poll());
+    }
+
+    @Test
+    public void peekIsNullWhileOnlyBlockedHostsHoldRequests() {
+        Request<?> first = offer(HOST_A, Request.Priority.NORMAL);
+        offer(HOST_A, Request.Priority.NORMAL);
+        mQueue.poll();
+        mQueue.poll();
+        Request<?> third = offer(HOST_A, Request.Priority.HIGH);
+
+        assertNull(mQueue.peek());
+        assertEquals(0, mQueue.getReadyCount());
+        assertEquals(1, mQueue.size());
+
+        Request<?> other = offer(HOST_B, Request.Priority.LOW);
+        assertSame(other, mQueue.peek());
+        assertEquals(1, mQueue.getReadyCount());
+
+        mQueue.release(first);
+        assertSame(third, mQueue.peek());
+    }
+
+    @Test
+    public void canceledRequestSkipsHostLimitAndTurn() {
+        offer(HOST_A, Request.Priority.NORMAL);
+        offer(HOST_A, Request.Priority.NORMAL);
+        mQueue.poll();
+        mQueue.poll();
+        offer(HOST_A, Request.Priority.HIGH);
+        Request<?> canceled = offer(HOST_A, Request.Priority.LOW);
+        Request<?> other = offer(HOST_B, Request.Priority.HIGH);
+        canceled.cancel();
+
+        assertSame(canceled, mQueue.poll());
+        assertSame(other, mQueue.poll());
+        assertNull(mQueue.poll());
+        assertEquals(1, mQueue.size());
+    }
+
+    @Test
+    public void hostsTakeTurns() {
+        mQueue.setMaxRequestsPerHost(10);
+        Request<?>[] a = {offer(HOST_A, Request.Priority.NORMAL),
+                offer(HOST_A, Request.Priority.NORMAL), offer(HOST_A, Request.Priority.NORMAL)};
+        Request<?>[] b = {offer(HOST_B, Request.Priority.NORMAL),
+                offer(HOST_B, Request.Priority.NORMAL)};
+        Request<?>[] c = {offer(HOST_C, Request.Priority.NORMAL)};
+
+        assertSame(a[0], mQueue.poll());
+        assertSame(b[0], mQueue.poll());
+        assertSame(c[0], mQueue.poll());
+        assertSame(a[1], mQueue.poll());
+        assertSame(b[1], mQueue.poll());
+        assertSame(a[2], mQueue.poll());
+        assertNull(mQueue.poll());
+    }
+
+    @Test
+    public void moreUrgentRequestJumpsTheTurn() {
+        mQueue.setMaxRequestsPerHost(10);
+        Request<?> normal = offer(HOST_A, Request.Priority.NORMAL);
+        Request<?> high = offer(HOST_B, Request.Priority.HIGH);
+
+        assertSame(high, mQueue.poll());
+        assertSame(normal, mQueue.poll());
+    }
+
+    @Test
+    public void priorityBandsGoInOrder() {
+        mQueue.setMaxRequestsPerHost(10);
+        Request<?> low = offer(HOST_A, Request.Priority.LOW);
+        Request<?> normal = offer(HOST_A, Request.Priority.NORMAL);
+        Request<?> high = offer(HOST_A, Request.Priority.HIGH);
+        Request<?> immediate = offer(HOST_A, Request.Priority.IMMEDIATE);
+        Request<?> normal2 = offer(HOST_A, Request.Priority.NORMAL);
+
+        assertSame(immediate, mQueue.poll());
+        assertSame(high, mQueue.poll());
+        assertSame(normal, mQueue.poll());
+        assertSame(normal2, mQueue.poll());
+        assertSame(low, mQueue.poll());
+    }
+
+    @Test
+    public void waitingRaisesPriority() {
+        mQueue.setMaxRequestsPerHost(10);
+        mQueue.setAgingInterval(1000);
+        Request<?> low = offer(HOST_A, Request.Priority.LOW);
+        Request<?> normal = offer(HOST_A, Request.Priority.NORMAL);
+
+        // One interval: up to NORMAL, where the request queued as NORMAL wins the tie.
+        low.setNetworkQueuedTime(SystemClock.elapsedRealtime() - 1500);
+        assertSame(normal, mQueue.peek());
+
+        // Two intervals: up to HIGH.
+        low.setNetworkQueuedTime(SystemClock.elapsedRealtime() - 2500);
+        assertSame(low, mQueue.peek());
+    }
+
+    @Test
+    public void agingNeverReachesImmediate() {
+        mQueue.setMaxRequestsPerHost(10);
+        mQueue.setAgingInterval(1000);
+        Request<?> low = offer(HOST_A, Request.Priority.LOW);
+        Request<?> immediate = offer(HOST_B, Request.Priority.IMMEDIATE);
+        low.setNetworkQueuedTime(SystemClock.elapsedRealtime() - 60 * 1000);
+
+        assertSame(immediate, mQueue.poll());
+        assertSame(low, mQueue.poll());
+    }
+
+    @Test
+    public void idleHostIsDropped() {
+        Request<?> request = offer(HOST_A, Request.Priority.NORMAL);
+        assertTrue(mQueue.getHostStats().containsKey(HOST_A));
+        mQueue.poll();
+        assertEquals(1, mQueue.getHostStats().get(HOST_A).running);
+
+        mQueue.release(request);
+        assertTrue(mQueue.getHostStats().isEmpty());
+
+        Request<?> removed = offer(HOST_B, Request.Priority.NORMAL);
+        assertTrue(mQueue.remove(removed));
+        assertTrue(mQueue.getHostStats().isEmpty());
+    }
+
+    private Request<?> offer(int host, Request.Priority priority) {
+        Request<?> request = new HostRequest(host);
+        request.setPriority(priority);
+        request.setSequence(mSequence++);
+        mQueue.offer(request);
+        return request;
+    }
+
+    private static class HostRequest extends Request<Void> {
+        private final int mHost;
+
+        HostRequest(int host) {
+            super(Method.GET, "http://host" + host + "/", null);
+            mHost = host;
+        }
+
+        @Override
+        public int getTrafficStatsTag() {
+            return mHost;
+        }
+
+        @Override
+        protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(Void response) {
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zhi.volley;
+
+import com.zhi.volley.toolbox.NoCache;
+import com.zhi.volley.toolbox.StringRequest;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the hand-over of requests waiting for a duplicate in flight.
+ */
+public class RequestQueueTest {
+    private static final String URL = "http://example.com/resource";
+
+    private RequestQueue mQueue;
+
+    @Before
+    public void setUp() {
+        // Never started: the tests play the cache dispatcher themselves.
+        mQueue = new RequestQueue(new NoCache(), null, 1, null);
+    }
+
+    @Test
+    public void duplicatesWaitForTheRequestInFlight() {
+        Request<String> first = mQueue.add(request(URL));
+        Request<String> second = mQueue.add(request(URL));
+        Request<String> third = mQueue.add(request(URL));
+        Request<String> other = mQueue.add(request(URL + "/other"));
+        assertEquals(2, mQueue.mCacheQueue.size());
+
+        mQueue.finish(first);
+        assertEquals(4, mQueue.mCacheQueue.size());
+        assertTrue(mQueue.mCacheQueue.contains(second));
+        assertTrue(mQueue.mCacheQueue.contains(third));
+        assertTrue(mQueue.mCacheQueue.contains(other));
+    }
+
+    @Test
+    public void finishingTwiceReleasesOnce() {
+        Request<String> first = mQueue.add(request(URL));
+        mQueue.add(request(URL));
+        mQueue.finish(first);
+        mQueue.finish(first);
+        assertEquals(2, mQueue.mCacheQueue.size());
+    }
+
+    @Test
+    public void requestAddedAfterFinishGoesInFlight() {
+        Request<String> first = mQueue.add(request(URL));
+        mQueue.finish(first);
+        mQueue.mCacheQueue.clear();
+        Request<String> next = mQueue.add(request(URL));
+        assertEquals(1, mQueue.mCacheQueue.size());
+        assertSame(next, mQueue.mCacheQueue.peek());
+    }
+
+    @Test
+    public void concurrentAddAndFinishDeliverEachRequestOnce() throws InterruptedException {
+        final int adders = 4;
+        final int finishers = 2;
+        final int perAdder = 5000;
+        final Map<Request<?>, Integer> deliveries = new IdentityHashMap<Request<?>, Integer>();
+        final List<Request<?>> added =
+                Collections.synchronizedList(new ArrayList<Request<?>>());
+        final AtomicInteger taken = new AtomicInteger();
+        final AtomicBoolean addersDone = new AtomicBoolean();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < finishers; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (!addersDone.get() || taken.get() < adders * perAdder) {
+                            Request<?> request = mQueue.mCacheQueue.poll(10,
+                                    TimeUnit.MILLISECONDS);
+                            if (request == null) {
+                                continue;
+                            }
+                            synchronized (deliveries) {
+                                Integer count = deliveries.get(request);
+                                deliveries.put(request, count != null ? count + 1 : 1);
+                            }
+                            taken.incrementAndGet();
+                            request.finish("done");
+                        }
+                    } catch (InterruptedException e) {
+                        // Timed out below.
+                    }
+                }
+            });
+        }
+        List<Thread> adderThreads = new ArrayList<Thread>();
+        for (int i = 0; i < adders; i++) {
+            adderThreads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < perAdder; j++) {
+                        added.add(mQueue.add(request(URL)));
+                    }
+                }
+            });
+        }
+        threads.addAll(adderThreads);
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : adderThreads) {
+            thread.join();
+        }
+        addersDone.set(true);
+        for (Thread thread : threads) {
+            thread.join(10000);
+            if (thread.isAlive()) {
+                thread.interrupt();
+            }
+        }
+
+        assertEquals(adders * perAdder, taken.get());
+        assertEquals(adders * perAdder, deliveries.size());
+        for (Request<?> request : added) {
+            assertEquals(Integer.valueOf(1), deliveries.get(request));
+        }
+        assertTrue(mQueue.mCacheQueue.isEmpty());
+    }
+
+    private static Request<String> request(String url) {
+        return new StringRequest(Request.Method.GET, url, null, null);
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zhi.volley.toolbox;
+
+import com.zhi.volley.Cache;
+import com.zhi.volley.toolbox.DiskBasedCache.CacheHeader;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheJournalTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private Map<String, CacheHeader> mEntries;
+    private Set<String> mDirtyKeys;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = mFolder.newFolder("cache");
+        mEntries = new LinkedHashMap<String, CacheHeader>();
+        mDirtyKeys = new HashSet<String>();
+    }
+
+    @Test
+    public void readMissingJournal() {
+        assertFalse(new CacheJournal(mDirectory).read(mEntries, mDirtyKeys));
+    }
+
+    @Test
+    public void roundTrip() {
+        CacheJournal journal = new CacheJournal(mDirectory);
+        CacheHeader a = header("a", "etag-a");
+        a.size = 1234;
+        a.bodyOffset = 56;
+        a.responseHeaders = Collections.singletonMap("Content-Type", "text/plain");
+        journal.put(a, false);
+        journal.put(header("b", "etag-b"), false);
+        journal.dirty("c");
+        journal.put(header("c", "etag-c"), false);
+        journal.put(header("d", "etag-d"), false);
+        journal.remove("d");
+        journal.sync();
+
+        assertTrue(new CacheJournal(mDirectory).read(mEntries, mDirtyKeys));
+        assertArrayEquals(new String[] {"a", "b", "c"}, mEntries.keySet().toArray());
+        assertTrue(mDirtyKeys.isEmpty());
+        CacheHeader read = mEntries.get("a");
+        assertEquals("etag-a", read.etag);
+        assertEquals(1234, read.size);
+        assertEquals(56, read.bodyOffset);
+        assertEquals(a.ttl, read.ttl);
+        assertEquals(a.softTtl, read.softTtl);
+        assertEquals(DiskBasedCache.CACHE_VERSION, read.version);
+        assertEquals("text/plain", read.responseHeaders.get("Content-Type"));
+    }
+
+    @Test
+    public void replacedEntryKeepsLastRecord() {
+        CacheJournal journal = new CacheJournal(mDirectory);
+        journal.put(header("a", "old"), false);
+        journal.dirty("a");
+        journal.put(header("a", "new"), true);
+
+        assertTrue(new CacheJournal(mDirectory).read(mEntries, mDirtyKeys));
+        assertEquals(1, mEntries.size());
+        assertEquals("new", mEntries.get("a").etag);
+    }
+
+    @Test
+    public void dirtyKeyWithoutPutIsReported() {
+        CacheJournal journal = new CacheJournal(mDirectory);
+        journal.put(header("a", "etag-a"), false);
+        journal.put(header("b", "etag-b"), false);
+        journal.dirty("a");
+
+        assertTrue(new CacheJournal(mDirectory).read(mEntries, mDirtyKeys));
+        assertEquals(Collections.singleton("b"), mEntries.keySet());
+        assertEquals(Collections.singleton("a"), mDirtyKeys);
+    }
+
+    @Test
+    public void truncatedTailKeepsEarlierRecords() throws IOException {
+        CacheJournal journal = new CacheJournal(mDirectory);
+        journal.put(header("a", "etag-a"), false);
+        journal.put(header("b", "etag-b"), false);
+        journal.sync();
+        truncateJournal(5);
+
+        assertTrue(new CacheJournal(mDirectory).read(mEntries, mDirtyKeys));
+        assertEquals(Collections.singleton("a"), mEntries.keySet());
+    }
+
+    @Test
+    public void recordsAfterTruncatedTailAreReadBack() throws IOException {
+        CacheJournal journal = new CacheJournal(mDirectory);
+        journal.put(header("a", "etag-a"), false);
+        journal.put(header("b", "etag-b"), false);
+        journal.sync();
+        truncateJournal(5);
+
+        CacheJournal reopened = new CacheJournal(mDirectory);
+        assertTrue(reopened.read(mEntries, mDirtyKeys));
+        reopened.put(header("c", "etag-c"), false);
+        reopened.sync();
+
+        mEntries.clear();
+        assertTrue(new CacheJournal(mDirectory).read(mEntries, mDirtyKeys));
+        assertArrayEquals(new String[] {"a", "c"}, mEntries.keySet().toArray());
+    }
+
+    @Test
+    public void appendBeforeReadCutsTruncatedTail() throws IOException {
+        CacheJournal journal = new CacheJournal(mDirectory);
+        journal.put(header("a", "etag-a"), false);
+        journal.put(header("b", "etag-b"), false);
+        journal.sync();
+        truncateJournal(5);
+
+        CacheJournal reopened = new CacheJournal(mDirectory);
+        reopened.remove("a");
+        reopened.put(header("c", "etag-c"), false);
+        reopened.sync();
+
+        assertTrue(new CacheJournal(mDirectory).read(mEntries, mDirtyKeys));
+        assertEquals(Collections.singleton("c"), mEntries.keySet());
+    }
+
+    @Test
+    public void corruptRecordFailsWholeJournal() throws IOException {
+        CacheJournal journal = new CacheJournal(mDirectory);
+        journal.put(header("a", "etag-a"), false);
+        journal.put(header("b", "etag-b"), false);
+        journal.sync();
+        // Flip a bit of the second record; its header checksum no longer matches.
+        File file = new File(mDirectory, CacheJournal.JOURNAL_FILE);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] content = new byte[(int) raf.length()];
+            raf.readFully(content);
+            final int offset = indexOf(content, "etag-b".getBytes(Charset.forName("UTF-8")));
+            assertTrue(offset > 0);
+            raf.seek(offset);
+            raf.write(content[offset] ^ 1);
+        } finally {
+            raf.close();
+        }
+
+        mDirtyKeys.add("stale");
+        assertFalse(new CacheJournal(mDirectory).read(mEntries, mDirtyKeys));
+        assertTrue(mEntries.isEmpty());
+        assertTrue(mDirtyKeys.isEmpty());
+    }
+
+    @Test
+    public void rewriteKeepsOnlyLiveEntries() {
+        CacheJournal journal = new CacheJournal(mDirectory);
+        CacheHeader a = header("a", "etag-a");
+        journal.put(a, false);
+        journal.put(header("b", "etag-b"), false);
+        journal.remove("b");
+        final int generation = journal.beginRewrite();
+        journal.put(header("c", "etag-c"), false);
+        journal.rewrite(Collections.singletonList(a), generation);
+
+        assertTrue(new CacheJournal(mDirectory).read(mEntries, mDirtyKeys));
+        assertArrayEquals(new String[] {"a", "c"}, mEntries.keySet().toArray());
+    }
+
+    @Test
+    public void startUpDeletesFilesOfDirtyKey() {
+        DiskBasedCache cache = new DiskBasedCache(mDirectory, new File(mDirectory, "extra"),
+                1024 * 1024);
+        cache.initialize();
+        cache.put("a", entry(100));
+        cache.put("b", entry(100));
+        File file = cache.getFileForKey("a");
+        assertTrue(file.exists());
+        // As if the process died while replacing the files of "a".
+        new CacheJournal(mDirectory).dirty("a");
+
+        DiskBasedCache reloaded = new DiskBasedCache(mDirectory, new File(mDirectory, "extra"),
+                1024 * 1024);
+        reloaded.initialize();
+        assertNull(reloaded.get("a"));
+        assertFalse(file.exists());
+        assertNotNull(reloaded.get("b"));
+    }
+
+    @Test
+    public void startUpDeletesOrphanBlobs() throws IOException {
+        DiskBasedCache cache = new DiskBasedCache(mDirectory, new File(mDirectory, "extra"),
+                1024 * 1024).setContentAddressed(true);
+        cache.initialize();
+        cache.put("a", entry(100));
+        File blobs = new File(mDirectory, CacheBlobStore.BLOB_DIRECTORY);
+        File[] files = blobs.listFiles();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        File orphan = new File(blobs, "0123456789abcdef");
+        assertTrue(orphan.createNewFile());
+        assertTrue(orphan.setLastModified(System.currentTimeMillis() - 60 * 1000));
+
+        DiskBasedCache reloaded = new DiskBasedCache(mDirectory, new File(mDirectory, "extra"),
+                1024 * 1024).setContentAddressed(true);
+        reloaded.initialize();
+        assertFalse(orphan.exists());
+        assertTrue(files[0].exists());
+        assertEquals(100, reloaded.get("a").data.length);
+    }
+
+    @Test
+    public void startUpDeletesFilesWithoutPutRecord() throws IOException {
+        DiskBasedCache cache = new DiskBasedCache(mDirectory, new File(mDirectory, "extra"),
+                1024 * 1024);
+        cache.initialize();
+        cache.put("a", entry(100));
+        cache.put("b", entry(100));
+        cache.shutdown();
+        File file = cache.getFileForKey("b");
+        // As if the put record of "b" never reached the disk.
+        new CacheJournal(mDirectory).remove("b");
+        assertTrue(file.setLastModified(System.currentTimeMillis() - 60 * 1000));
+        File tmp = new File(cache.getFileForKey("c").getPath() + ".tmp");
+        assertTrue(tmp.getParentFile().mkdirs() || tmp.getParentFile().isDirectory());
+        assertTrue(tmp.createNewFile());
+        assertTrue(tmp.setLastModified(System.currentTimeMillis() - 60 * 1000));
+
+        DiskBasedCache reloaded = new DiskBasedCache(mDirectory, new File(mDirectory, "extra"),
+                1024 * 1024);
+        reloaded.initialize();
+        assertFalse(file.exists());
+        assertFalse(tmp.exists());
+        assertTrue(cache.getFileForKey("a").exists());
+        assertNotNull(reloaded.get("a"));
+    }
+
+    private static CacheHeader header(String key, String etag) {
+        Cache.Entry entry = entry(10);
+        entry.etag = etag;
+        return new CacheHeader(key, entry);
+    }
+
+    private static Cache.Entry entry(int length) {
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = new byte[length];
+        entry.data[0] = 42;
+        entry.inMemory = true;
+        entry.ttl = Long.MAX_VALUE;
+        entry.softTtl = Long.MAX_VALUE;
+        return entry;
+    }
+
+    private void truncateJournal(int count) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(
+                new File(mDirectory, CacheJournal.JOURNAL_FILE), "rw");
+        try {
+            raf.setLength(raf.length() - count);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int indexOf(byte[] content, byte[] pattern) {
+        for (int i = 0; i + pattern.length <= content.length; i++) {
+            boolean match = true;
+            for (int j = 0; j < pattern.length && match; j++) {
+                match = content[i + j] == pattern[j];
+            }
+            if (match) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zhi.volley.toolbox;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link FrequencySketch}. It has no doorkeeper; the halving of all counters once the
+ * sample size is reached is what lets old popularity fade, and is tested here instead.
+ */
+public class FrequencySketchTest {
+    private static final int CAPACITY = 64;
+
+    /**
+     * Increments counted before the counters get halved, ten times the capacity.
+     */
+    private static final int SAMPLE_SIZE = 10 * CAPACITY;
+
+    private FrequencySketch mSketch;
+
+    @Before
+    public void setUp() {
+        mSketch = new FrequencySketch();
+        mSketch.ensureCapacity(CAPACITY);
+    }
+
+    @Test
+    public void unseenKeyHasNoFrequency() {
+        assertEquals(0, mSketch.frequency("never"));
+    }
+
+    @Test
+    public void incrementCounts() {
+        for (int i = 1; i <= 10; i++) {
+            mSketch.increment("key");
+            assertEquals(i, mSketch.frequency("key"));
+        }
+        assertEquals(0, mSketch.frequency("other"));
+    }
+
+    @Test
+    public void countersSaturateAtFifteen() {
+        for (int i = 0; i < 100; i++) {
+            mSketch.increment("key");
+        }
+        assertEquals(15, mSketch.frequency("key"));
+    }
+
+    @Test
+    public void sampleSizeHalvesCounters() {
+        for (int i = 0; i < 10; i++) {
+            mSketch.increment("hot");
+        }
+        for (int i = 0; i < 15; i++) {
+            mSketch.increment("saturated");
+        }
+        // Fill up to one increment short of the sample size, a few keys at a time, so that
+        // the counters of the keys above stay clear of collisions.
+        int counted = 25;
+        int filler = 0;
+        while (counted < SAMPLE_SIZE - 1) {
+            final String key = "filler" + (filler / 12);
+            mSketch.increment(key);
+            filler++;
+            counted++;
+        }
+        assertEquals(10, mSketch.frequency("hot"));
+        assertEquals(15, mSketch.frequency("saturated"));
+
+        mSketch.increment("last");
+        assertEquals(5, mSketch.frequency("hot"));
+        assertEquals(7, mSketch.frequency("saturated"));
+        assertEquals(0, mSketch.frequency("last"));
+    }
+
+    @Test
+    public void growingDropsCounts() {
+        mSketch.increment("key");
+        mSketch.ensureCapacity(CAPACITY);
+        assertEquals(1, mSketch.frequency("key"));
+        mSketch.ensureCapacity(CAPACITY * 4);
+        assertEquals(0, mSketch.frequency("key"));
+    }
+
+    @Test
+    public void frequencyNeverUnderestimates() {
+        for (int i = 0; i < CAPACITY * 4; i++) {
+            for (int j = 0; j <= i % 3; j++) {
+                mSketch.increment("key" + i);
+            }
+        }
+        for (int i = 0; i < CAPACITY * 4; i++) {
+            assertTrue(mSketch.frequency("key" + i) >= i % 3 + 1);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright [2015] [zhi]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.zhi.volley.toolbox;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the admission decisions of {@link TinyLfuEvictionPolicy}. Entries weigh 10 bytes out
+ * of 1000, so that the window, 1% of the cache, holds a single entry.
+ */
+public class TinyLfuEvictionPolicyTest {
+    private static final long WEIGHT = 10;
+
+    private TinyLfuEvictionPolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        mPolicy = new TinyLfuEvictionPolicy();
+        mPolicy.setMaximumWeight(100 * WEIGHT);
+    }
+
+    @Test
+    public void emptyPolicyHasNoVictim() {
+        assertNull(mPolicy.victim());
+    }
+
+    @Test
+    public void windowEntryIsEvictedWhenAlone() {
+        mPolicy.onInsert("a", WEIGHT);
+        assertEquals("a", mPolicy.victim());
+    }
+
+    @Test
+    public void candidateIsAdmittedOnlyIfMoreFrequent() {
+        mPolicy.onInsert("old", WEIGHT);
+        mPolicy.onInsert("x", WEIGHT);
+        // Nothing to compete with: "old" goes on probation, and is the victim.
+        assertEquals("old", mPolicy.victim());
+
+        // "x" leaves the window, seen as often as "old": rejected.
+        mPolicy.onInsert("new", WEIGHT);
+        assertEquals("x", mPolicy.victim());
+        mPolicy.onRemove("x");
+
+        // "new" leaves the window seen more often than "old": admitted in its place.
+        mPolicy.onAccess("new");
+        mPolicy.onAccess("new");
+        mPolicy.onInsert("y", WEIGHT);
+        assertEquals("old", mPolicy.victim());
+    }
+
+    @Test
+    public void scanDoesNotFlushFrequentEntry() {
+        mPolicy.onInsert("hot", WEIGHT);
+        for (int i = 0; i < 5; i++) {
+            mPolicy.onAccess("hot");
+        }
+        mPolicy.onInsert("first", WEIGHT);
+        // Alone in the main region, "hot" is the victim until something competes with it.
+        assertEquals("hot", mPolicy.victim());
+
+        // Evict as a full cache would after every insert of a one-off key.
+        for (int i = 0; i < 200; i++) {
+            mPolicy.onInsert("scan" + i, WEIGHT);
+            final String victim = mPolicy.victim();
+            assertNotEquals("hot", victim);
+            mPolicy.onRemove(victim);
+        }
+    }
+
+    @Test
+    public void readOnProbationPromotes() {
+        mPolicy.onInsert("a", WEIGHT);
+        mPolicy.onInsert("b", WEIGHT);
+        assertEquals("a", mPolicy.victim());
+        mPolicy.onAccess("b");
+        mPolicy.onInsert("c", WEIGHT);
+        // "b" is admitted, behind "a" on probation.
+        assertEquals("a", mPolicy.victim());
+
+        mPolicy.onAccess("a");
+        // "a" is protected now, which leaves "b" the eldest on probation.
+        assertEquals("b", mPolicy.victim());
+    }
+
+    @Test
+    public void removedEntryIsNeverVictim() {
+        mPolicy.onInsert("a", WEIGHT);
+        mPolicy.onInsert("b", WEIGHT);
+        mPolicy.onRemove("a");
+        assertEquals("b", mPolicy.victim());
+        mPolicy.onRemove("b");
+        assertNull(mPolicy.victim());
+    }
+}